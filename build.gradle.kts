@@ -7,6 +7,7 @@ plugins {
     id("com.gradleup.shadow") version "8.3.5"
     id("org.jetbrains.gradle.plugin.idea-ext") version "1.1.10"
     id("xyz.jpenilla.run-velocity") version "2.3.1"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "me.tech"
@@ -33,6 +34,22 @@ dependencies {
     implementation("org.xerial:sqlite-jdbc:3.50.1.0")
 
     compileOnly("com.github.retrooper:packetevents-velocity:2.8.0")
+    compileOnly("io.netty:netty-buffer:4.1.115.Final")
+    compileOnly("io.netty:netty-transport:4.1.115.Final")
+
+    // compileOnly dependencies aren't on the benchmark classpath, the proxy provides them at runtime.
+    jmh("com.velocitypowered:velocity-api:3.4.0-SNAPSHOT")
+    jmh("com.github.retrooper:packetevents-velocity:2.8.0")
+    jmh("io.netty:netty-buffer:4.1.115.Final")
+    jmh("io.netty:netty-transport:4.1.115.Final")
+
+    testImplementation(platform("org.junit:junit-bom:5.11.4"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+    // the packet type index reads the PacketEvents enums.
+    testImplementation("com.github.retrooper:packetevents-velocity:2.8.0")
+    // the capture test samples Netty buffers.
+    testImplementation("io.netty:netty-buffer:4.1.115.Final")
 }
 
 
@@ -44,10 +61,20 @@ tasks.withType<ShadowJar> {
     relocate("dev.dejvokep", "me.tech.packetlogger.shaded")
 }
 
+jmh {
+    // report allocation rates next to the timings.
+    profilers.add("gc")
+    resultFormat.set("JSON")
+}
+
 tasks {
     runVelocity {
         velocityVersion("3.4.0-SNAPSHOT")
     }
+
+    test {
+        useJUnitPlatform()
+    }
 }
 
 val templateSource = file("src/main/templates")
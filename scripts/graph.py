@@ -1,37 +1,104 @@
 import argparse
+import glob
+import gzip
+import os
+import shutil
 import sqlite3
+import tempfile
 import plotly.graph_objects as go
 
 
-def get_packet_totals(db_file, time_granularity="minute", outgoing_filter=None, sort_by='amount'):
+def find_db_files(paths):
+    """
+    Expand the given paths into SQLite files.
+    A folder is either a date folder (`yyyy-MM-dd`) or the plugin data folder, whose date folders are used.
+    Other folders such as `exports` are skipped as they hold copies of the same windows, pass their files
+    directly to graph them. Archived `.sqlite.gz` files are included too, unless the file itself is still there.
+    Args:
+        paths (list): Paths to SQLite files or folders containing them.
+    Returns:
+        list: The SQLite file paths, sorted.
+    """
+    db_files = []
+    for path in paths:
+        if not os.path.isdir(path):
+            db_files.append(path)
+            continue
+
+        folders = [path] if is_date_folder(path) else [
+            os.path.join(path, name) for name in os.listdir(path)
+            if is_date_folder(os.path.join(path, name))
+        ]
+        for folder in folders:
+            db_files.extend(glob.glob(os.path.join(folder, "*.sqlite")))
+            db_files.extend(glob.glob(os.path.join(folder, "*.sqlite.gz")))
+
+    # an archive whose original wasn't deleted yet holds the same windows.
+    files = set(os.path.normpath(file) for file in db_files)
+    return sorted(file for file in files if not (file.endswith(".gz") and file[:-len(".gz")] in files))
+
+
+def is_date_folder(path):
+    """
+    Check whether a path is one of the plugin's date folders, e.g. `2025-01-31`.
+    """
+    name = os.path.basename(os.path.normpath(path))
+    return os.path.isdir(path) and len(name) == 10 and name[4] == "-" and name[7] == "-" \
+        and name.replace("-", "").isdigit()
+
+
+def get_packet_totals(db_files, time_granularity="minute", outgoing_filter=None, sort_by='amount'):
     """
     Fetch packet totals and sizes per time unit (minute or hour) for each packet name.
+    The plugin rotates its SQLite file, so the totals of every file are added together.
     Args:
-        db_file (str): Path to the SQLite file.
+        db_files (list): Paths to the SQLite files.
         time_granularity (str): Either 'minute' or 'hour' for the time grouping.
         outgoing_filter (str): Optional filter ('outgoing', 'incoming', or None for all packets).
         sort_by (str): Sort method - 'amount' or 'size'
     Returns:
         dict: A dictionary containing packet totals, sorted as specified.
     """
+    packet_totals = {}
+    for db_file in db_files:
+        add_packet_totals(packet_totals, db_file, time_granularity, outgoing_filter, sort_by)
+    return packet_totals
+
+
+def add_packet_totals(packet_totals, db_file, time_granularity, outgoing_filter, sort_by):
+    """
+    Add the packet totals of one SQLite file to the totals.
+    Archives are decompressed into a temporary file first.
+    """
+    if db_file.endswith(".gz"):
+        with tempfile.TemporaryDirectory() as temp_dir:
+            extracted = os.path.join(temp_dir, "packets.sqlite")
+            with gzip.open(db_file, "rb") as src, open(extracted, "wb") as dst:
+                shutil.copyfileobj(src, dst)
+            add_packet_totals(packet_totals, extracted, time_granularity, outgoing_filter, sort_by)
+        return
+
     with sqlite3.connect(db_file) as conn:
         cursor = conn.cursor()
         time_format = '%Y-%m-%d %H:%M' if time_granularity == "minute" else '%Y-%m-%d %H'
+        # the plugin keeps per minute and per hour rollups, so we never scan the raw rows.
+        # size_bytes is already the total size of the bucket.
+        rollup = "batched_packets_minute" if time_granularity == "minute" else "batched_packets_hour"
         query = f"""
             SELECT
-                batched_packets.packet_name,
-                SUM(batched_packets.amount) AS total_amount,
-                SUM(batched_packets.amount * batched_packets.size_bytes) / 1e6 AS total_mb,
-                strftime('{time_format}', datetime(batched_packets.collected_at / 1000, 'unixepoch')) AS time_period
-            FROM batched_packets
-            JOIN packet_bound ON batched_packets.packet_name = packet_bound.packet_name
+                packet_type.name,
+                SUM({rollup}.amount) AS total_amount,
+                SUM({rollup}.size_bytes) / 1e6 AS total_mb,
+                strftime('{time_format}', datetime({rollup}.bucket / 1000, 'unixepoch')) AS time_period
+            FROM {rollup}
+            JOIN packet_type ON {rollup}.packet_type_id = packet_type.id
         """
         if outgoing_filter == "outgoing":
-            query += " WHERE packet_bound.outgoing = 1 "
+            query += " WHERE packet_type.outgoing = 1 "
         elif outgoing_filter == "incoming":
-            query += " WHERE packet_bound.outgoing = 0 "
+            query += " WHERE packet_type.outgoing = 0 "
 
-        query += f" GROUP BY batched_packets.packet_name, time_period"
+        query += f" GROUP BY packet_type.name, time_period"
 
         if sort_by == 'amount':
             query += " ORDER BY total_amount DESC"
@@ -41,7 +108,6 @@ def get_packet_totals(db_file, time_granularity="minute", outgoing_filter=None,
         cursor.execute(query)
         rows = cursor.fetchall()
 
-    packet_totals = {}
     for row in rows:
         packet_name = row[0]
         total_amount = row[1]
@@ -49,12 +115,9 @@ def get_packet_totals(db_file, time_granularity="minute", outgoing_filter=None,
         time_period = row[3]
         if time_period not in packet_totals:
             packet_totals[time_period] = {}
-        packet_totals[time_period][packet_name] = {
-            'amount': total_amount,
-            'mb': total_mb
-        }
-
-    return packet_totals
+        totals = packet_totals[time_period].setdefault(packet_name, {'amount': 0, 'mb': 0})
+        totals['amount'] += total_amount
+        totals['mb'] += total_mb
 
 
 def plot_packet_totals(packet_totals, time_granularity="minute", sort_by='amount'):
@@ -188,10 +251,11 @@ def plot_packet_totals(packet_totals, time_granularity="minute", sort_by='amount
 if __name__ == "__main__":
     parser = argparse.ArgumentParser(description="Packet Analyzer")
     parser.add_argument(
-        "--file", type=str, default="packet.sqlite", help="Path to the database file")
+        "--file", type=str, nargs="+", default=["packet.sqlite"],
+        help="Paths to database files or folders of them")
     args = parser.parse_args()
 
-    db_file = args.file
+    db_files = find_db_files(args.file)
     outgoing_filter = input(
         "Enter packet type filter ('all', 'outgoing', 'incoming'): ").strip().lower()
     time_granularity = input(
@@ -203,7 +267,7 @@ if __name__ == "__main__":
         print("Invalid input. Please enter 'minute' or 'hour'.")
     else:
         packet_totals = get_packet_totals(
-            db_file,
+            db_files,
             time_granularity=time_granularity,
             outgoing_filter=outgoing_filter,
             sort_by='amount'
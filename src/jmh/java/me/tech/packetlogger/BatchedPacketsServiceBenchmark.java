@@ -0,0 +1,237 @@
+package me.tech.packetlogger;
+
+import com.github.retrooper.packetevents.protocol.ConnectionState;
+import com.github.retrooper.packetevents.protocol.packettype.PacketType;
+import com.github.retrooper.packetevents.protocol.packettype.PacketTypeCommon;
+import com.github.retrooper.packetevents.protocol.player.ClientVersion;
+import com.github.retrooper.packetevents.protocol.player.User;
+import com.github.retrooper.packetevents.protocol.player.UserProfile;
+import com.velocitypowered.api.event.EventManager;
+import com.velocitypowered.api.event.connection.PostLoginEvent;
+import com.velocitypowered.api.proxy.Player;
+import com.velocitypowered.api.proxy.ProxyServer;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * The listener's hot path, {@link BatchedPacketsService#add(PacketTypeCommon, Object, User)}, with the
+ * filter, the packet type lookup and every enabled collector, on a service built from a test config.
+ * Only the wire size pairing is left out, it needs a live channel.
+ * <ul>
+ *     <li>counters, the default config</li>
+ *     <li>filtered, every other clientbound play packet type is excluded and returns at the filter</li>
+ *     <li>all, connections, heavy hitters and a 1 in 100 capture on top of the counters</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class BatchedPacketsServiceBenchmark {
+    private static final int USERS = 256;
+
+    @Param({"counters", "filtered", "all"})
+    public String collectors;
+
+    private Path folder;
+    private BatchedPacketsService service;
+    private final User[] users = new User[USERS];
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        folder = Files.createTempDirectory("packetlogger-jmh");
+        Files.writeString(folder.resolve("config.yml"), config(collectors));
+
+        // the service registers its connection tracking as a listener, keep it to log the users in.
+        final var listeners = new ArrayList<>();
+        final var eventManager = stub(EventManager.class, (method, args) -> {
+            if(method.equals("register") && args.length == 2) {
+                listeners.add(args[1]);
+            }
+            return null;
+        });
+        final var server = stub(ProxyServer.class, (method, args) -> method.equals("getEventManager") ? eventManager : null);
+
+        final var plugin = new PacketLoggerPlugin(server, LoggerFactory.getLogger(PacketLoggerPlugin.class), folder);
+        service = new BatchedPacketsService(plugin);
+
+        for(int i = 0; i < USERS; i++) {
+            final var uuid = new UUID(0, i);
+            final var name = "player" + i;
+            users[i] = new User(null, ConnectionState.PLAY, ClientVersion.V_1_21, new UserProfile(uuid, name));
+
+            final var player = stub(Player.class, (method, args) -> switch(method) {
+                case "getUniqueId" -> uuid;
+                case "getUsername" -> name;
+                default -> null;
+            });
+            for(final var listener : listeners) {
+                if(listener instanceof ConnectionDimensions dimensions) {
+                    dimensions.onPostLogin(new PostLoginEvent(player));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int add1(PacketMix mix) {
+        return add(mix);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public int add16(PacketMix mix) {
+        return add(mix);
+    }
+
+    private int add(PacketMix mix) {
+        final var i = mix.next();
+        return service.add(mix.types[i], mix.buffers[mix.bufferIndexes[i]], users[mix.userIndexes[i]]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        service.shutdown(TimeUnit.SECONDS.toMillis(10));
+        try(final Stream<Path> files = Files.walk(folder)) {
+            for(final var file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * @param collectors the benchmark param
+     * @return the config.yml of the service, every other key falls back to the defaults
+     */
+    private static String config(String collectors) {
+        return switch(collectors) {
+            case "counters" -> "";
+            case "filtered" -> {
+                final var excluded = new ArrayList<String>();
+                final var types = PacketType.Play.Server.values();
+                for(int i = 0; i < types.length; i += 2) {
+                    excluded.add(types[i].getName());
+                }
+                yield "exclude-packets: [%s]\n".formatted(String.join(", ", excluded));
+            }
+            case "all" -> """
+                track-connections: true
+                heavy-hitters-enabled: true
+                capture-enabled: true
+                capture-sample-rate: 100
+                """;
+            default -> throw new IllegalArgumentException(collectors);
+        };
+    }
+
+    /**
+     * A proxy implementing an API interface the service touches, every other method returns null.
+     * @param type the interface
+     * @param answer the answer by method name and arguments
+     * @return the stub
+     */
+    private static <T> T stub(Class<T> type, Answer answer) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            final var arguments = args == null ? new Object[0] : args;
+            return switch(method.getName()) {
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "equals" -> proxy == arguments[0];
+                case "toString" -> type.getSimpleName();
+                default -> {
+                    final var answered = answer.answer(method.getName(), arguments);
+                    yield answered == null && method.getReturnType() == Optional.class ? Optional.empty() : answered;
+                }
+            };
+        }));
+    }
+
+    @FunctionalInterface
+    private interface Answer {
+        Object answer(String method, Object[] args);
+    }
+
+    /**
+     * A per producer, pre generated play packet mix.
+     * Packet types follow a Zipf distribution over every play packet type, sizes are mostly small
+     * with a tail of chunk sized packets, and the users are picked uniformly.
+     */
+    @State(Scope.Thread)
+    public static class PacketMix {
+        private static final int LENGTH = 1 << 16;
+        private static final int BUFFERS = 64;
+
+        final PacketTypeCommon[] types = new PacketTypeCommon[LENGTH];
+        final int[] bufferIndexes = new int[LENGTH];
+        final int[] userIndexes = new int[LENGTH];
+        /** Preallocated buffers of mixed sizes, a packet only has to be readable to be counted. */
+        final ByteBuf[] buffers = new ByteBuf[BUFFERS];
+        private int cursor;
+
+        @Setup
+        public void setup() {
+            final var random = new SplittableRandom(Thread.currentThread().threadId());
+
+            final var playTypes = new ArrayList<PacketTypeCommon>(List.of(PacketType.Play.Client.values()));
+            playTypes.addAll(List.of(PacketType.Play.Server.values()));
+
+            for(int i = 0; i < BUFFERS; i++) {
+                final var size = i == 0 ? random.nextInt(16_384, 262_144) : random.nextInt(8, 256);
+                buffers[i] = Unpooled.wrappedBuffer(new byte[size]);
+            }
+
+            final var weights = new double[playTypes.size()];
+            double total = 0;
+            for(int i = 0; i < weights.length; i++) {
+                weights[i] = 1.0 / (i + 1);
+                total += weights[i];
+            }
+
+            for(int i = 0; i < LENGTH; i++) {
+                var pick = random.nextDouble() * total;
+                int slot = 0;
+                while(slot < weights.length - 1 && (pick -= weights[slot]) > 0) {
+                    slot++;
+                }
+                types[i] = playTypes.get(slot);
+                bufferIndexes[i] = random.nextInt(BUFFERS);
+                userIndexes[i] = random.nextInt(USERS);
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            for(final var buffer : buffers) {
+                buffer.release();
+            }
+        }
+
+        int next() {
+            return cursor++ & (LENGTH - 1);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package me.tech.packetlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per packet hot path, {@link PacketCounters#record(int, int)}, under 1 to 64 producers.
+ * Every producer stands in for a Netty event loop and replays a skewed packet mix.
+ * The `drain` group runs the scheduler tick's snapshot next to producers that keep recording.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class PacketCountersBenchmark {
+    private PacketCounters counters;
+
+    @Setup
+    public void setup() {
+        counters = new PacketCounters(PacketMix.SLOTS);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void record1(PacketMix mix) {
+        record(mix);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void record4(PacketMix mix) {
+        record(mix);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void record16(PacketMix mix) {
+        record(mix);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void record64(PacketMix mix) {
+        record(mix);
+    }
+
+    /**
+     * Draining with nothing recording, the cost of walking every slot.
+     */
+    @Benchmark
+    @Threads(1)
+    public void snapshot(Blackhole blackhole) {
+        blackhole.consume(counters.snapshot(0, ConnectionDimensions.Snapshot.EMPTY, List.of()));
+    }
+
+    /**
+     * The scheduler tick draining while producers keep recording into the cells it swaps.
+     */
+    @Benchmark
+    @Group("drain")
+    @GroupThreads(1)
+    public void drainSnapshot(Blackhole blackhole) {
+        blackhole.consume(counters.snapshot(0, ConnectionDimensions.Snapshot.EMPTY, List.of()));
+    }
+
+    /**
+     * The producers of the `drain` group.
+     */
+    @Benchmark
+    @Group("drain")
+    @GroupThreads(8)
+    public void drainRecord(PacketMix mix) {
+        record(mix);
+    }
+
+    private void record(PacketMix mix) {
+        final var i = mix.next();
+        counters.record(mix.indexes[i], mix.sizes[i]);
+    }
+
+    /**
+     * A per producer, pre generated packet mix.
+     * Packet types follow a Zipf distribution (a few movement and entity packets dominate a proxy)
+     * and sizes are mostly small with a long tail of chunk sized packets.
+     */
+    @State(Scope.Thread)
+    public static class PacketMix {
+        static final int SLOTS = 256;
+        private static final int LENGTH = 1 << 16;
+
+        final int[] indexes = new int[LENGTH];
+        final int[] sizes = new int[LENGTH];
+        private int cursor;
+
+        @Setup
+        public void setup() {
+            final var random = new SplittableRandom(Thread.currentThread().threadId());
+
+            final var weights = new double[SLOTS];
+            double total = 0;
+            for(int i = 0; i < SLOTS; i++) {
+                weights[i] = 1.0 / (i + 1);
+                total += weights[i];
+            }
+
+            for(int i = 0; i < LENGTH; i++) {
+                var pick = random.nextDouble() * total;
+                int slot = 0;
+                while(slot < SLOTS - 1 && (pick -= weights[slot]) > 0) {
+                    slot++;
+                }
+                indexes[i] = slot;
+                sizes[i] = random.nextInt(100) == 0 ? random.nextInt(16_384, 2_097_152) : random.nextInt(8, 256);
+            }
+        }
+
+        int next() {
+            return cursor++ & (LENGTH - 1);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package me.tech.packetlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * One flush, {@link PacketDatabase#write(PacketSnapshot)}, against a SQLite file in a temp dir.
+ * Cardinality is the amount of packet types seen during the window.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class PacketDatabaseBenchmark {
+    @Param({"16", "64", "150", "250"})
+    public int cardinality;
+
+    @Param({"NORMAL", "FULL"})
+    public String synchronous;
+
+    private Path folder;
+    private PacketDatabase database;
+    private PacketSnapshot snapshot;
+    private long collectedAt;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        final var packetTypes = new PacketTypeIndex();
+        folder = Files.createTempDirectory("packetlogger-jmh");
+        database = new PacketDatabase(folder.resolve("packets.sqlite"), packetTypes, synchronous, 4096);
+        database.open();
+
+        final var slots = packetTypes.size();
+        final var counters = new PacketCounters(slots);
+        for(int i = 0; i < Math.min(cardinality, slots); i++) {
+            for(int packet = 0; packet < 32; packet++) {
+                counters.record(i, 16 + packet * 64);
+            }
+        }
+        snapshot = counters.snapshot(0, ConnectionDimensions.Snapshot.EMPTY, List.of());
+    }
+
+    @Benchmark
+    public void flush() throws SQLException {
+        // every flush lands in a new 5 second window like it would on a proxy.
+        collectedAt += 5_000;
+        database.write(new PacketSnapshot(
+            collectedAt,
+            snapshot.amounts(),
+            snapshot.sizes(),
+            snapshot.wireSizes(),
+            snapshot.maxSizes(),
+            snapshot.sizeHistograms(),
+            snapshot.violations(),
+            snapshot.connections(),
+            snapshot.heavyHitters()
+        ));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        database.close();
+        try(final Stream<Path> files = Files.walk(folder)) {
+            for(final var file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
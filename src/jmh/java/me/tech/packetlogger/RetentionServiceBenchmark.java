@@ -0,0 +1,115 @@
+package me.tech.packetlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * One retention run, {@link RetentionService#run()}, over a temp data folder of closed SQLite files.
+ * Purging is destructive, so every iteration runs once against a freshly copied data folder.
+ * <ul>
+ *     <li>age, every date folder is past `purge-days` and deleted</li>
+ *     <li>raw, every raw row is past `raw-retention-hours`, deleted and the files vacuumed</li>
+ *     <li>budget, the disk budget is 1 byte so every file is deleted oldest first</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class RetentionServiceBenchmark {
+    private static final int FILES_PER_FOLDER = 4;
+    /** Ten minutes of 5 second windows per file. */
+    private static final int WINDOWS = 120;
+
+    @Param({"age", "raw", "budget"})
+    public String policy;
+
+    @Param({"7", "30"})
+    public int folders;
+
+    private Path template;
+    private Path dataFolder;
+    private RetentionService retention;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        template = Files.createTempDirectory("packetlogger-jmh").resolve("template.sqlite");
+
+        final var packetTypes = new PacketTypeIndex();
+        final var database = new PacketDatabase(template, packetTypes, "OFF", 4096);
+        database.open();
+
+        final var counters = new PacketCounters(packetTypes.size());
+        // a year old, so every row is past any raw retention.
+        var collectedAt = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(365);
+        for(int window = 0; window < WINDOWS; window++) {
+            for(int i = 0; i < 64; i++) {
+                counters.record(i, 16 + window * 8);
+            }
+            collectedAt += 5_000;
+            database.write(counters.snapshot(collectedAt, ConnectionDimensions.Snapshot.EMPTY, List.of()));
+        }
+        database.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void copy() throws IOException {
+        dataFolder = Files.createTempDirectory("packetlogger-jmh");
+        final var zone = ZoneId.systemDefault();
+        for(int day = 1; day <= folders; day++) {
+            final var start = LocalDate.now().minusDays(day).atStartOfDay(zone).toInstant().toEpochMilli();
+            final var folder = Files.createDirectories(dataFolder.resolve(Constants.folderName(start)));
+            for(int file = 0; file < FILES_PER_FOLDER; file++) {
+                final var periodStart = start + TimeUnit.HOURS.toMillis(file);
+                Files.copy(template, folder.resolve(Constants.sqliteFileName(periodStart)));
+            }
+        }
+
+        retention = switch(policy) {
+            case "age" -> new RetentionService(dataFolder, 1, 0, false, 0, null, List::of, (before) -> {});
+            case "raw" -> new RetentionService(dataFolder, 0, TimeUnit.HOURS.toMillis(1), false, 0, null, List::of, (before) -> {});
+            case "budget" -> new RetentionService(dataFolder, 0, 0, false, 1, null, List::of, (before) -> {});
+            default -> throw new IllegalArgumentException(policy);
+        };
+    }
+
+    @Benchmark
+    public void purge() {
+        retention.run();
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteCopy() throws IOException {
+        delete(dataFolder);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        delete(template.getParent());
+    }
+
+    private static void delete(Path folder) throws IOException {
+        try(final Stream<Path> files = Files.walk(folder)) {
+            for(final var file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
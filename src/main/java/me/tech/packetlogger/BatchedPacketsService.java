@@ -1,218 +1,890 @@
 package me.tech.packetlogger;
 
+import com.github.retrooper.packetevents.event.PacketSendEvent;
 import com.github.retrooper.packetevents.event.ProtocolPacketEvent;
-import com.github.retrooper.packetevents.netty.buffer.ByteBufHelper;
-import com.github.retrooper.packetevents.protocol.PacketSide;
+import com.github.retrooper.packetevents.protocol.packettype.PacketTypeCommon;
+import com.github.retrooper.packetevents.protocol.player.User;
+import com.velocitypowered.api.proxy.Player;
+import io.netty.buffer.ByteBuf;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.SQLException;
 import java.time.Instant;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public final class BatchedPacketsService {
     private static final Logger log = LoggerFactory.getLogger(BatchedPacketsService.class);
+    /** How long before the shutdown deadline the sink stops waiting, so the writer is done by then. */
+    private static final long CLOSE_MARGIN_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
 
     private final PacketLoggerPlugin plugin;
     private final Path dataFolderPath;
-    private final ExecutorService executor;
+    private final ThreadPoolExecutor executor;
 
-    private final Set<String> packetBoundCache = ConcurrentHashMap.newKeySet();
-    private final Map<String, PacketRecord> packetQueue = new ConcurrentHashMap<>();
+    private final PacketTypeIndex packetTypes = new PacketTypeIndex();
+    private final PacketCounters counters = new PacketCounters(packetTypes.size());
+    private final PacketStats stats = new PacketStats(packetTypes.size(), Instant.now().toEpochMilli());
+    private final SnapshotRing ring;
+    private final ConnectionDimensions dimensions;
+    private final HeavyHitters heavyHitters;
+    private final PacketCapture capture;
+    private final PacketRateLimiter rateLimiter;
+    private final PacketSink sink;
+    /** Whether each slot is logged, everything else returns from {@link #add(ProtocolPacketEvent)} right away. */
+    private final boolean[] logged;
+    /** The exporters every window is offered to besides the sink, each on its own thread. */
+    private final List<SinkWorker> exporters;
+    /** Whether connections get a {@link WireSizeHandler}. */
+    private final boolean trackWireSizes;
+    /** 1 in N calls to {@link #add(ProtocolPacketEvent)} are timed, 0 never times them. */
+    private final int addSampleRate;
+
+    /** One permit per window the writer may hold, queued or being written. */
+    private final Semaphore writePermits;
+    private final OverflowPolicy overflowPolicy;
+    /** How long the block policy waits for a writer permit before the window is dropped. */
+    private final long blockMillis;
+    /** The window the block policy is waiting to hand to the writer, at most one at a time. */
+    private final AtomicReference<PacketSnapshot> blockedWindow = new AtomicReference<>();
+    /** Every window handed to the writer and not written yet, oldest first. */
+    private final Queue<PacketSnapshot> pendingWindows = new ConcurrentLinkedQueue<>();
+    /** Set once shutdown starts, packets counted after that would never be written. */
+    private volatile boolean closed;
+    /** Set while a raw purge is queued on the writer, so retention never queues a second one. */
+    private final AtomicBoolean purging = new AtomicBoolean();
+    /** Velocity runs every repeat of a task on a pooled thread, this keeps a slow tick from overlapping the next. */
+    private final AtomicBoolean ticking = new AtomicBoolean();
+    /** Only touched by the scheduler tick, which never overlaps itself. */
+    private long lastFlushAt;
 
     public BatchedPacketsService(
         final PacketLoggerPlugin plugin
     ) {
         this.plugin = plugin;
         this.dataFolderPath = plugin.dataDirectory;
-        this.executor = Executors.newSingleThreadExecutor();
+        // a single writer thread with a bounded queue, the permits keep windows from ever overflowing it.
+        final var queueSize = Math.max(plugin.config.getInt("writer-queue-size", 1), 1);
+        // extra slots for closing the sink and a raw purge, and a daemon thread so a stuck write can't hold the proxy up.
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize + 2), (runnable) -> {
+            final var thread = new Thread(runnable, "packetlogger-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writePermits = new Semaphore(queueSize);
+        this.overflowPolicy = OverflowPolicy.valueOf(plugin.config.getString("writer-overflow", "merge").toUpperCase(Locale.ROOT));
+        this.blockMillis = TimeUnit.SECONDS.toMillis(plugin.config.getInt("writer-block-seconds", 10));
+
+        if(plugin.config.getBoolean("track-connections", false)) {
+            this.dimensions = new ConnectionDimensions(packetTypes.size());
+            plugin.server.getEventManager().register(plugin, dimensions);
+        } else {
+            this.dimensions = null;
+        }
 
-        createSqlite();
+        this.heavyHitters = plugin.config.getBoolean("heavy-hitters-enabled", false) ? createHeavyHitters() : null;
+        this.capture = plugin.config.getBoolean("capture-enabled", false) ? createCapture() : null;
+        this.rateLimiter = plugin.config.getBoolean("rate-limits-enabled", false) ? createRateLimiter() : null;
+        this.logged = createFilter();
+        this.trackWireSizes = plugin.config.getBoolean("track-wire-sizes", false);
+        this.addSampleRate = plugin.config.getInt("instrumentation-sample-rate", 0);
+        this.ring = new SnapshotRing(
+            TimeUnit.MINUTES.toMillis(plugin.config.getInt("top-memory-minutes", 15)),
+            plugin.config.getInt("top-memory-windows", 1024),
+            Instant.now().toEpochMilli()
+        );
+
+        this.sink = createSink();
+        // the sink is owned by the executor, open it there.
+        await(executor.submit(() -> {
+            sink.open();
+            return null;
+        }));
+
+        this.exporters = createExporters();
+        for(final var exporter : exporters) {
+            exporter.open();
+        }
     }
 
     /**
      * Add a packet to the queue.
+     * Only the packet type PacketEvents already resolved from the packet id is read, the packet
+     * is never decoded into a wrapper, and a packet type that isn't logged stops at the filter.
      * @param event the dispatched packet event
      */
     public void add(ProtocolPacketEvent event) {
-        final String packetName = event.getPacketType().getName();
-        final int size = ByteBufHelper.readableBytes(event.getByteBuf());
-        final boolean outgoing = event.getPacketType().getSide() == PacketSide.SERVER;
+        final int index = add(event.getPacketType(), event.getByteBuf(), event.getUser());
+        if(index >= 0 && trackWireSizes) {
+            recordWire(event, index);
+        }
+    }
+
+    /**
+     * Add a packet from what its event already resolved, everything but the wire size.
+     * Separate from {@link #add(ProtocolPacketEvent)} so benchmarks can drive it without a channel.
+     * @param packetType the packet type
+     * @param byteBuf the packet {@link ByteBuf}
+     * @param user the PacketEvents user, null if it's unknown
+     * @return the packet type slot, or -1 if the packet isn't logged
+     */
+    int add(PacketTypeCommon packetType, Object byteBuf, User user) {
+        if(closed) {
+            return -1;
+        }
+
+        final int index = packetTypes.indexOf(packetType);
+        final var isLogged = index >= 0 && logged[index];
+        if(!isLogged) {
+            return -1;
+        }
+
+        if(addSampleRate != 0 && ThreadLocalRandom.current().nextInt(addSampleRate) == 0) {
+            addTimed(index, (ByteBuf) byteBuf, user);
+            return index;
+        }
+
+        record(index, (ByteBuf) byteBuf, user);
+        return index;
+    }
+
+    /**
+     * Add a packet while timing it, into the stats and a {@link PacketAddEvent} if JFR is recording.
+     * @param index the packet type slot
+     * @param byteBuf the packet {@link ByteBuf}
+     * @param user the PacketEvents user, null if it's unknown
+     */
+    private void addTimed(int index, ByteBuf byteBuf, User user) {
+        final var jfrEvent = new PacketAddEvent();
+        jfrEvent.begin();
+        final var start = System.nanoTime();
+
+        record(index, byteBuf, user);
+
+        stats.timedAdd(System.nanoTime() - start);
+        jfrEvent.end();
+        if(jfrEvent.shouldCommit()) {
+            jfrEvent.packetType = packetTypes.name(index);
+            jfrEvent.outgoing = packetTypes.outgoing(index);
+            jfrEvent.size = byteBuf.readableBytes();
+            jfrEvent.commit();
+        }
+    }
+
+    /**
+     * Count a packet into every enabled collector.
+     * @param index the packet type slot
+     * @param byteBuf the packet {@link ByteBuf}
+     * @param user the PacketEvents user, null if it's unknown
+     */
+    private void record(int index, ByteBuf byteBuf, User user) {
+        final int size = byteBuf.readableBytes();
+        counters.record(index, size);
+
+        if(dimensions != null || heavyHitters != null) {
+            final var uuid = user == null ? null : user.getUUID();
+            if(uuid != null) {
+                if(dimensions != null) {
+                    dimensions.record(uuid, index, size);
+                }
+                if(heavyHitters != null) {
+                    heavyHitters.record(index, uuid);
+                }
+            }
+        }
+
+        if(capture != null) {
+            capture.sample(index, byteBuf, size);
+        }
+    }
+
+    /**
+     * Pair a packet with its frame in the {@link WireSizeHandler} of its connection.
+     * @param event the dispatched packet event
+     * @param index the packet type slot
+     */
+    private void recordWire(ProtocolPacketEvent event, int index) {
+        final var handler = WireSizeHandler.of(event.getChannel());
+        if(handler == null) {
+            return;
+        }
+
+        if(event instanceof PacketSendEvent) {
+            // a cancelled packet never reaches the frame encoder.
+            if(!event.isCancelled()) {
+                handler.expectOutbound(index);
+            }
+        } else {
+            final var wireSize = handler.inboundSize();
+            if(wireSize >= 0) {
+                counters.recordWire(index, wireSize);
+            }
+        }
+    }
+
+    /**
+     * Start measuring the wire sizes of a new connection, if `track-wire-sizes` is enabled.
+     * Called from the event loop of the connection while it's being set up.
+     * @param channel the Netty channel of the PacketEvents user
+     */
+    public void connect(Object channel) {
+        if(trackWireSizes && channel != null) {
+            WireSizeHandler.install(channel, counters);
+        }
+    }
+
+    /**
+     * @return the packet capture, or null if it's disabled
+     */
+    public PacketCapture capture() {
+        return capture;
+    }
+
+    /**
+     * @return the rate limiter, or null if it's disabled
+     */
+    public PacketRateLimiter rateLimiter() {
+        return rateLimiter;
+    }
+
+    public PacketTypeIndex packetTypes() {
+        return packetTypes;
+    }
+
+    public PacketCounters counters() {
+        return counters;
+    }
+
+    public PacketStats stats() {
+        return stats;
+    }
+
+    /**
+     * @return the totals of the most recent windows
+     */
+    public SnapshotRing ring() {
+        return ring;
+    }
+
+    /**
+     * @return 1 in how many packet adds are timed, 0 if none are
+     */
+    public int addSampleRate() {
+        return addSampleRate;
+    }
+
+    /**
+     * @return the exporters
+     */
+    public List<SinkWorker> exporters() {
+        return exporters;
+    }
 
-        if(!packetBoundCache.contains(packetName)) {
-            packetBoundCache.add(packetName);
-            // quickly add to db.
-            executor.submit(() -> addPacketBound(packetName, outgoing));
+    /**
+     * @return the files the sink and the exporters are writing to
+     */
+    public List<Path> activeFiles() {
+        final var files = new ArrayList<>(sink.activeFiles());
+        for(final var exporter : exporters) {
+            files.addAll(exporter.activeFiles());
         }
+        return files;
+    }
 
-        final var record = packetQueue.computeIfAbsent(packetName, (k) -> new PacketRecord());
-        record.amount.getAndIncrement();
-        record.size.getAndAdd(size);
+    /**
+     * @return the amount of rows counted since the last snapshot
+     */
+    public int dirtyRows() {
+        return counters.dirtyCells() + (dimensions == null ? 0 : dimensions.dirtyRecords());
     }
 
     /**
-     * Start publishing packet batches to the SQLite database.
+     * @return the amount of windows waiting for the writer
+     */
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return how far behind the writer is, the age of the oldest window not written yet in millis
+     */
+    public long writerLagMillis() {
+        // a blocked window is always newer than the ones already handed to the writer.
+        var oldest = pendingWindows.peek();
+        if(oldest == null) {
+            oldest = blockedWindow.get();
+        }
+        return oldest == null ? 0 : Math.max(Instant.now().toEpochMilli() - oldest.collectedAt(), 0);
+    }
+
+    /**
+     * Queue a purge of the raw rows in the files the sink is writing to, on the writer as it owns them.
+     * Does nothing while a purge is still queued or once shutdown started.
+     * @param before the epoch millis to delete raw rows before
+     * @param connections whether the per connection rows are deleted too
+     */
+    public void purgeRaw(long before, boolean connections) {
+        if(closed || !purging.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    sink.purgeRaw(before, connections);
+                } finally {
+                    purging.set(false);
+                }
+            });
+        } catch(RejectedExecutionException ex) {
+            // shutdown got there first.
+            purging.set(false);
+        }
+    }
+
+    /**
+     * Start publishing packet batches to the sink.
+     * A window is flushed once `flush-seconds` have passed or `flush-dirty-rows` rows
+     * have been counted, whichever comes first.
      */
     public void startPublish() {
-        final var flushSeconds = plugin.config.getInt("flush-seconds", 5);
+        final var windowMillis = TimeUnit.SECONDS.toMillis(plugin.config.getInt("flush-seconds", 5));
+        final var dirtyThreshold = plugin.config.getInt("flush-dirty-rows", 4096);
+        final var checkMillis = plugin.config.getInt("flush-check-millis", 250);
+
+        lastFlushAt = Instant.now().toEpochMilli();
+        plugin.server.getScheduler().buildTask(plugin, () -> tick(windowMillis, dirtyThreshold))
+            .repeat(checkMillis, TimeUnit.MILLISECONDS)
+            .schedule();
 
-        final var scheduler = plugin.server.getScheduler();
-        scheduler.buildTask(plugin, () -> {
-            executor.submit(this::flush);
-        }).repeat(flushSeconds, TimeUnit.SECONDS);
+        final var lagWarnMillis = TimeUnit.SECONDS.toMillis(plugin.config.getInt("writer-lag-warn-seconds", 30));
+        plugin.server.getScheduler().buildTask(plugin, () -> watchdog(lagWarnMillis))
+            .repeat(10, TimeUnit.SECONDS)
+            .schedule();
     }
 
     /**
-     * Flush the contents of the queue into SQLite.
+     * Warn while the writer is falling behind.
+     * @param lagWarnMillis the writer lag to warn at
      */
-    public void flush() {
-        try(final var conn = getConnection()) {
-            conn.setAutoCommit(false);
-            final String sql = "INSERT INTO batched_packets (packet_name, amount, size_bytes, collected_at) VALUES (?, ?, ?, ?)";
+    private void watchdog(long lagWarnMillis) {
+        final var lag = writerLagMillis();
+        if(lag >= lagWarnMillis) {
+            log.warn("Packet writer is {} s behind, {} windows queued, {} rows dropped so far",
+                TimeUnit.MILLISECONDS.toSeconds(lag), queueDepth(), stats.droppedRecords());
+        }
+    }
 
-            final var counter = new AtomicInteger();
-            final var nowMs = Instant.now().toEpochMilli();
+    /**
+     * Check whether the current window is due and hand it to the writer.
+     * @param windowMillis the longest a window is kept in memory
+     * @param dirtyThreshold the amount of rows that flushes a window early, 0 to only flush on time
+     */
+    private void tick(long windowMillis, int dirtyThreshold) {
+        if(closed || !ticking.compareAndSet(false, true)) {
+            return;
+        }
 
-            try(final var statement = conn.prepareStatement(sql)) {
-                for(final var packet : packetQueue.keySet()) {
-                    final var record = packetQueue.get(packet);
-                    final var amount = record.amount.get();
-                    final var size = record.size.get();
+        try {
+            tickOnce(windowMillis, dirtyThreshold);
+        } finally {
+            ticking.set(false);
+        }
+    }
 
-                    statement.setObject(1, packet);
-                    statement.setObject(2, amount);
-                    statement.setObject(3, size);
-                    statement.setObject(4, nowMs);
-                    statement.addBatch();
+    private void tickOnce(long windowMillis, int dirtyThreshold) {
+        final var now = Instant.now().toEpochMilli();
+        final var dirtyRows = dirtyRows();
+        final var windowDue = now - lastFlushAt >= windowMillis;
+        final var thresholdDue = dirtyThreshold > 0 && dirtyRows >= dirtyThreshold;
+        if(!windowDue && !thresholdDue) {
+            return;
+        }
 
-                    if(counter.getAndIncrement() % 15 == 0) {
-                        statement.executeBatch();
-                        conn.commit();
-                    }
+        if(dirtyRows == 0) {
+            lastFlushAt = now;
+            stats.skipped();
+            return;
+        }
+
+        // shutdown takes over the last window once it set closed, only one of them may drain it.
+        synchronized(this) {
+            if(closed || !reserveWrite(now)) {
+                return;
+            }
+            lastFlushAt = now;
+            // drain on the scheduler so collected_at matches the window, not the write.
+            submit(snapshot());
+        }
+    }
+
+    /**
+     * Take a writer permit for the due window, applying the overflow policy if the writer is full.
+     * Never waits, the caller holds the lock shutdown sets {@link #closed} under.
+     * @param now the epoch millis of the tick
+     * @return true if the window can be handed to the writer
+     */
+    private boolean reserveWrite(long now) {
+        if(writePermits.tryAcquire()) {
+            return true;
+        }
+
+        switch(overflowPolicy) {
+            case MERGE -> {
+                // keep counting into this window, it's written as one once the writer catches up.
+                stats.deferred();
+                return false;
+            }
+            case BLOCK -> {
+                stats.deferred();
+                // while a window is already waiting, later ones keep counting so ticks never stack up.
+                if(blockedWindow.get() != null) {
+                    return false;
+                }
+                lastFlushAt = now;
+                final var window = snapshot();
+                blockedWindow.set(window);
+                plugin.server.getScheduler().buildTask(plugin, () -> awaitWrite(window)).schedule();
+                return false;
+            }
+            case DROP -> {
+                lastFlushAt = now;
+                final var dropped = snapshot();
+                stats.dropped(dropped.rows());
+                log.warn("Packet writer is full, dropped a window of {} rows", dropped.rows());
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wait for a writer permit for a window the block policy held back, on its own pooled thread.
+     * The window is dropped once `writer-block-seconds` pass, shutdown takes it over once it starts.
+     * @param window the blocked {@link PacketSnapshot}
+     */
+    private void awaitWrite(PacketSnapshot window) {
+        try {
+            if(!writePermits.tryAcquire(blockMillis, TimeUnit.MILLISECONDS)) {
+                if(blockedWindow.compareAndSet(window, null)) {
+                    stats.dropped(window.rows());
+                    log.warn("Packet writer stayed full for {} ms, dropped a window of {} rows", blockMillis, window.rows());
                 }
+                return;
+            }
+        } catch(InterruptedException ex) {
+            // cancelled on shutdown, which writes the window itself.
+            Thread.currentThread().interrupt();
+            return;
+        }
 
-                // flush final batch
-                statement.executeBatch();
-                conn.commit();
-            } catch(SQLException ex) {
-                conn.rollback();
-                ex.printStackTrace();
+        synchronized(this) {
+            if(!closed && blockedWindow.compareAndSet(window, null)) {
+                submit(window);
+                return;
+            }
+        }
+        writePermits.release();
+    }
+
+    /**
+     * Hand a window to the writer, a permit must have been taken for it.
+     * @param snapshot the {@link PacketSnapshot} to write
+     * @return the write
+     */
+    private Future<?> submit(PacketSnapshot snapshot) {
+        pendingWindows.add(snapshot);
+        return executor.submit(() -> {
+            try {
+                write(snapshot);
             } finally {
-                conn.setAutoCommit(true);
+                pendingWindows.poll();
+                writePermits.release();
             }
-        } catch(SQLException ex) {
-            ex.printStackTrace();
+        });
+    }
+
+    /**
+     * Stop counting, write the last window, then checkpoint and close the sink and the exporters.
+     * Everything runs on the writer in order behind the windows already queued,
+     * this blocks until it's done or the timeout expires.
+     * @param timeoutMillis how long to wait for the writer and the exporters
+     */
+    public void shutdown(long timeoutMillis) {
+        // a tick that already took a permit submits before the writer is shut down, or not at all.
+        synchronized(this) {
+            closed = true;
+        }
+        final var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        try {
+            // a window the block policy held back is older than the last one, it's written first.
+            final var blocked = blockedWindow.getAndSet(null);
+            if(blocked != null) {
+                submitBefore(blocked, deadline);
+            }
+            submitBefore(snapshot(), deadline);
+
+            final var sinkDeadline = deadline - CLOSE_MARGIN_NANOS;
+            executor.execute(() -> sink.close(sinkDeadline));
+            executor.shutdown();
+            if(executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                log.info("Packet writer shut down, {} rows written.", stats.rowsWritten());
+                closeExporters(deadline);
+                return;
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
 
-        packetQueue.clear();
+        int lostRows = 0;
+        for(final var snapshot : pendingWindows) {
+            lostRows += snapshot.rows();
+        }
+        stats.dropped(lostRows);
+        log.error("Packet writer didn't finish within {} ms, {} rows in {} windows were lost.",
+            timeoutMillis, lostRows, pendingWindows.size());
+        executor.shutdownNow();
+        closeExporters(deadline);
     }
 
     /**
-     * Add a packet bound to the SQLite database.
-     * @param packetName the packet name
-     * @param outgoing whether it's incoming or outgoing
+     * Hand a window to the writer once it has room, or drop it if the deadline passes first.
+     * @param snapshot the {@link PacketSnapshot} to write
+     * @param deadlineNanos the {@link System#nanoTime()} to give up at
      */
-    private void addPacketBound(String packetName, boolean outgoing) {
-        try(final var conn = getConnection()) {
-            final String sql = "INSERT INTO packet_bound (packet_name, outgoing) VALUES (?, ?)";
+    private void submitBefore(PacketSnapshot snapshot, long deadlineNanos) throws InterruptedException {
+        if(writePermits.tryAcquire(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            submit(snapshot);
+        } else {
+            stats.dropped(snapshot.rows());
+            log.error("Packet writer is still full, a window of {} rows was lost", snapshot.rows());
+        }
+    }
 
-            try(final var statement = conn.prepareStatement(sql)) {
-                statement.setString(1, packetName);
-                statement.setBoolean(2, outgoing);
+    /**
+     * Close every exporter, they ran next to the writer so they share its deadline.
+     * @param deadlineNanos the {@link System#nanoTime()} to give up at
+     */
+    private void closeExporters(long deadlineNanos) {
+        for(final var exporter : exporters) {
+            exporter.close(deadlineNanos);
+        }
+    }
+
+    /**
+     * Drain the packet and connection counters and the heavy hitters into one window,
+     * and offer it to the exporters.
+     * @return the drained {@link PacketSnapshot}
+     */
+    private PacketSnapshot snapshot() {
+        final var connections = dimensions == null ? ConnectionDimensions.Snapshot.EMPTY : dimensions.snapshot();
+        final var hitters = heavyHitters == null ? List.<HeavyHitters.Entry>of() : heavyHitters.snapshot((uuid) ->
+            plugin.server.getPlayer(uuid).map(Player::getUsername).orElse(""));
+        final var snapshot = counters.snapshot(Instant.now().toEpochMilli(), connections, hitters);
+        stats.drained(snapshot);
+        ring.add(snapshot);
+        // exporters get every window, even one the sink drops, and never wait on it.
+        for(final var exporter : exporters) {
+            exporter.offer(snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Write a drained snapshot into the sink.
+     * @param snapshot the {@link PacketSnapshot} to write
+     */
+    private void write(PacketSnapshot snapshot) {
+        if(snapshot.isEmpty()) {
+            return;
+        }
+
+        final var jfrEvent = new PacketFlushEvent();
+        jfrEvent.begin();
+        final var writtenBefore = sink.bytesWritten();
+        final var start = System.nanoTime();
+        try {
+            sink.write(snapshot);
+            stats.flushed(System.nanoTime() - start, snapshot.rows(), sink.bytesWritten());
+        } catch(Exception ex) {
+            jfrEvent.failed = true;
+            stats.dropped(snapshot.rows());
+            log.error("Unable to write {} packet rows", snapshot.rows(), ex);
+        }
 
-                statement.executeUpdate();
-            } catch(SQLException ex) {
-                ex.printStackTrace();
+        jfrEvent.end();
+        if(jfrEvent.shouldCommit()) {
+            jfrEvent.rows = snapshot.rows();
+            jfrEvent.bytesWritten = sink.bytesWritten() - writtenBefore;
+            jfrEvent.queueDepth = queueDepth();
+            jfrEvent.commit();
+        }
+    }
+
+    /**
+     * Create the packet capture from the `capture-*` config.
+     * @return the {@link PacketCapture}
+     */
+    private PacketCapture createCapture() {
+        final var sampleRates = new int[packetTypes.size()];
+        Arrays.fill(sampleRates, plugin.config.getInt("capture-sample-rate", 0));
+
+        final var overrides = plugin.config.getSection("capture-sample-rates");
+        if(overrides != null) {
+            warnUnknownPackets("capture-sample-rates", overrides.getRoutesAsStrings(false));
+            for(final var packetName : overrides.getRoutesAsStrings(false)) {
+                final var rate = overrides.getInt(packetName);
+                for(int index = 0; index < packetTypes.size(); index++) {
+                    if(packetTypes.name(index).equals(packetName)) {
+                        sampleRates[index] = rate;
+                    }
+                }
             }
-        } catch(SQLException ex) {
-            ex.printStackTrace();
         }
+
+        // the ring buffer is a single array, so it can't be larger than an int can index.
+        final var bufferMb = plugin.config.getLong("capture-buffer-mb", 16L);
+        if(bufferMb < 1 || bufferMb > Integer.MAX_VALUE / (1024 * 1024)) {
+            throw new IllegalArgumentException("capture-buffer-mb must be between 1 and %d, got %d"
+                .formatted(Integer.MAX_VALUE / (1024 * 1024), bufferMb));
+        }
+
+        // a record has to leave room for others, or every sample evicts the whole ring.
+        final var capacity = (int) bufferMb * 1024 * 1024;
+        final var maxBytes = plugin.config.getInt("capture-max-bytes", 4096);
+        if(maxBytes < 0 || maxBytes > capacity / 2) {
+            throw new IllegalArgumentException("capture-max-bytes must be between 0 and %d, got %d"
+                .formatted(capacity / 2, maxBytes));
+        }
+
+        return new PacketCapture(
+            packetTypes,
+            sampleRates,
+            capacity,
+            maxBytes
+        );
     }
 
     /**
-     * Create the SQLite Database
-     * This method will create the `batched_packets` table which contains the actual
-     * packet information
-     * And this method will create the `packet_bound` table which contains whether a packet is
-     * incoming or outgoing which will then be joined into the graph.
+     * Compile the `include-*` and `exclude-packets` config into a flag per slot.
+     * A slot is logged if its direction and state are included, its name is included or
+     * `include-packets` is empty, and its name isn't excluded.
+     * @return whether each slot is logged
      */
-    private void createSqlite() {
-        final var dbFolder = dataFolderPath.resolve(Constants.DB_FOLDER_NAME);
-        if(!Files.exists(dbFolder)) {
-            try {
-                Files.createDirectory(dbFolder);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+    private boolean[] createFilter() {
+        final var includedPackets = plugin.config.getStringList("include-packets", List.of());
+        final var excludedPackets = plugin.config.getStringList("exclude-packets", List.of());
+        final var includedDirections = plugin.config.getStringList("include-directions", List.of("incoming", "outgoing"));
+        final var includedStates = plugin.config.getStringList("include-states", List.of("handshaking", "status", "login", "configuration", "play"));
+        warnUnknownPackets("include-packets", includedPackets);
+        warnUnknownPackets("exclude-packets", excludedPackets);
+        warnUnknown("include-directions", includedDirections, List.of("incoming", "outgoing"));
+        warnUnknown("include-states", includedStates, List.of("handshaking", "status", "login", "configuration", "play"));
+
+        final var filter = new boolean[packetTypes.size()];
+        int count = 0;
+        for(int index = 0; index < filter.length; index++) {
+            final var name = packetTypes.name(index);
+            filter[index] = (includedPackets.isEmpty() || includedPackets.contains(name))
+                && !excludedPackets.contains(name)
+                && includedDirections.contains(packetTypes.outgoing(index) ? "outgoing" : "incoming")
+                && includedStates.contains(packetTypes.state(index));
+            if(filter[index]) {
+                count++;
             }
         }
 
-        final var dbFile = dataFolderPath.resolve(Constants.DB_FOLDER_NAME)
-            .resolve(Constants.SQLITE_FILE_NAME);
-        if(!Files.exists(dbFile)) {
-            try {
-                Files.createFile(dbFile);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        if(count < filter.length) {
+            log.info("Logging {} of {} packet types", count, filter.length);
+        }
+        return filter;
+    }
+
+    /**
+     * Warn about packet names in a config key that match no packet type, so a typo doesn't silently match nothing.
+     * @param key the config key
+     * @param packetNames the configured packet names
+     */
+    private void warnUnknownPackets(String key, Collection<String> packetNames) {
+        for(final var packetName : packetNames) {
+            if(!packetTypes.hasName(packetName)) {
+                log.warn("Unknown packet type {} in {}, it's ignored", packetName, key);
             }
         }
+    }
 
-        try (var conn = getConnection()) {
-            conn.createStatement()
-                .execute("CREATE TABLE IF NOT EXISTS batched_packets (" +
-                    "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                    "packet_name TEXT NOT NULL, " +
-                    "amount INTEGER NOT NULL," +
-                    "size_bytes INTEGER NOT NULL, " +
-                    "collected_at INTEGER NOT NULL" +
-                    ");");
+    /**
+     * Warn about values in a config key that aren't one of the known values.
+     * @param key the config key
+     * @param values the configured values
+     * @param known the values the key accepts
+     */
+    private void warnUnknown(String key, Collection<String> values, List<String> known) {
+        for(final var value : values) {
+            if(!known.contains(value)) {
+                log.warn("Unknown value {} in {}, expected one of {}", value, key, known);
+            }
+        }
+    }
 
-            conn.createStatement()
-                    .execute("CREATE TABLE IF NOT EXISTS packet_bound (" +
-                        "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                        "packet_name TEXT NOT NULL, " +
-                        "outgoing INTEGER NOT NULL " +
-                        ");");
-            log.info("Created batched_packets table in SQLite DB.");
-        } catch (SQLException ex) {
-            throw new RuntimeException(ex);
+    /**
+     * Create the rate limiter from the `rate-limit*` config.
+     * @return the {@link PacketRateLimiter}
+     */
+    private PacketRateLimiter createRateLimiter() {
+        final var packetsPerSecond = new int[packetTypes.size()];
+        final var limits = plugin.config.getSection("rate-limits");
+        if(limits != null) {
+            warnUnknownPackets("rate-limits", limits.getRoutesAsStrings(false));
+            for(final var packetName : limits.getRoutesAsStrings(false)) {
+                final var limit = limits.getInt(packetName);
+                for(int index = 0; index < packetTypes.size(); index++) {
+                    if(packetTypes.name(index).equals(packetName)) {
+                        packetsPerSecond[index] = limit;
+                    }
+                }
+            }
         }
+
+        return new PacketRateLimiter(
+            plugin.server,
+            packetTypes,
+            counters,
+            PacketRateLimiter.Action.valueOf(plugin.config.getString("rate-limit-action", "cancel").toUpperCase(Locale.ROOT)),
+            packetsPerSecond,
+            plugin.config.getLong("rate-limit-bytes-per-second", 0L),
+            plugin.config.getDouble("rate-limit-burst-seconds", 2.0)
+        );
     }
 
     /**
-     * Grab a new SQLite Connection
-     * @return the {@link Connection}
-     * @throws SQLException if the driver manager failed
+     * Create the heavy hitter sketches from the `heavy-hitter*` config.
+     * @return the {@link HeavyHitters}
      */
-    private Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(
-            "jdbc:sqlite:%s".formatted(getDBFilePath().toAbsolutePath())
+    private HeavyHitters createHeavyHitters() {
+        final var packetNames = plugin.config.getStringList("heavy-hitter-packets", List.of("PLAYER_POSITION", "PLUGIN_MESSAGE"));
+        warnUnknownPackets("heavy-hitter-packets", packetNames);
+        final var tracked = new boolean[packetTypes.size()];
+        for(int index = 0; index < packetTypes.size(); index++) {
+            tracked[index] = packetNames.contains(packetTypes.name(index));
+        }
+
+        return new HeavyHitters(
+            tracked,
+            plugin.config.getInt("heavy-hitter-depth", 4),
+            plugin.config.getInt("heavy-hitter-width", 2048),
+            plugin.config.getInt("heavy-hitter-top", 10)
         );
     }
 
     /**
-     * Get the path to the SQLite file
-     * @return the {@link Path} to the SQLite file
+     * Create the sink configured by `storage`.
+     * @return the {@link PacketSink}
      */
-    private Path getDBFilePath() {
-        return dataFolderPath.resolve(Constants.DB_FOLDER_NAME)
-            .resolve(Constants.SQLITE_FILE_NAME);
+    private PacketSink createSink() {
+        final var storage = plugin.config.getString("storage", "sqlite");
+        if(storage.equals("columnar") && (dimensions != null || heavyHitters != null)) {
+            log.warn("storage: columnar doesn't store per connection rows or heavy hitters, use sqlite to keep them");
+        }
+        return switch(storage) {
+            case "columnar" -> new ColumnarPacketSink(
+                dataFolderPath,
+                packetTypes,
+                plugin.config.getInt("columnar-segment-rows", 65536)
+            );
+            case "sqlite" -> new RotatingPacketDatabase(
+                dataFolderPath,
+                packetTypes,
+                plugin.config.getString("sqlite-synchronous", "NORMAL"),
+                plugin.config.getInt("sqlite-page-size", 4096),
+                TimeUnit.MINUTES.toMillis(plugin.config.getInt("rotate-minutes", 60)),
+                plugin.config.getLong("rotate-mb", 0L) * 1024 * 1024
+            );
+            default -> throw new IllegalArgumentException("Unknown storage %s".formatted(storage));
+        };
     }
 
-    private record PacketRecord(AtomicInteger amount, AtomicLong size) {
-        public PacketRecord() {
-            this(new AtomicInteger(0), new AtomicLong(0));
+    /**
+     * Create the exporters enabled by `statsd-enabled`, `influx-enabled` and `otlp-enabled`.
+     * @return the {@link SinkWorker}s, empty if none are enabled
+     */
+    private List<SinkWorker> createExporters() {
+        final var queueSize = Math.max(plugin.config.getInt("exporter-queue-size", 4), 1);
+        final var maxPacketBytes = plugin.config.getInt("exporter-max-packet-bytes", 1432);
+        final var exporters = new ArrayList<SinkWorker>();
+
+        if(plugin.config.getBoolean("statsd-enabled", false)) {
+            exporters.add(new SinkWorker("statsd", new UdpLinePacketSink(
+                UdpLinePacketSink.Format.STATSD,
+                plugin.config.getString("statsd-host", "127.0.0.1"),
+                plugin.config.getInt("statsd-port", 8125),
+                packetTypes,
+                plugin.config.getString("statsd-prefix", "packetlogger"),
+                maxPacketBytes
+            ), queueSize));
+        }
+
+        if(plugin.config.getBoolean("influx-enabled", false)) {
+            exporters.add(new SinkWorker("influx", new UdpLinePacketSink(
+                UdpLinePacketSink.Format.INFLUX,
+                plugin.config.getString("influx-host", "127.0.0.1"),
+                plugin.config.getInt("influx-port", 8089),
+                packetTypes,
+                plugin.config.getString("influx-measurement", "packetlogger"),
+                maxPacketBytes
+            ), queueSize));
+        }
+
+        if(plugin.config.getBoolean("otlp-enabled", false)) {
+            exporters.add(new SinkWorker("otlp", new OtlpFilePacketSink(
+                dataFolderPath,
+                packetTypes,
+                plugin.config.getString("otlp-service-name", "velocity")
+            ), queueSize));
+        }
+        return exporters;
+    }
+
+    /**
+     * What to do with a due window while the writer is full.
+     */
+    public enum OverflowPolicy {
+        /** Keep counting into the window and write it as one once there's room. */
+        MERGE,
+        /** Drop the window and count its rows as dropped. */
+        DROP,
+        /** Wait up to `writer-block-seconds` for room on a separate thread, then drop the window. */
+        BLOCK
+    }
+
+    /**
+     * Wait for a task submitted to the executor.
+     * @param future the task
+     */
+    private static void await(Future<?> future) {
+        try {
+            future.get();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch(ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
         }
     }
 }
@@ -0,0 +1,144 @@
+package me.tech.packetlogger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes packet windows into {@link ColumnarSegment}s instead of SQLite.
+ * A segment is sealed and a new one started once it's full, segments can be converted
+ * into the SQLite schema with {@link ColumnarSegmentExporter}.
+ * Segments go into the date folder of their first window, and a segment is also rolled at midnight,
+ * so a segment never spans two date folders and retention can purge them by day.
+ * Per connection records and heavy hitters aren't stored in this format.
+ */
+public final class ColumnarPacketSink implements PacketSink {
+    private static final Logger log = LoggerFactory.getLogger(ColumnarPacketSink.class);
+
+    private final Path dataFolder;
+    private final PacketTypeIndex packetTypes;
+    private final int segmentRows;
+
+    private ColumnarSegment segment;
+    /** The file of {@link #segment}, read by retention. */
+    private volatile Path segmentFile;
+    /** The date folder of {@link #segment}. */
+    private String segmentFolderName;
+    private long bytesWritten;
+
+    public ColumnarPacketSink(
+        final Path dataFolder,
+        final PacketTypeIndex packetTypes,
+        final int segmentRows
+    ) {
+        this.dataFolder = dataFolder;
+        this.packetTypes = packetTypes;
+        // a segment has to fit at least one full window.
+        this.segmentRows = Math.max(segmentRows, packetTypes.size());
+    }
+
+    @Override
+    public void open() throws IOException {
+        Files.createDirectories(dataFolder);
+    }
+
+    @Override
+    public void write(PacketSnapshot snapshot) throws IOException {
+        final var amounts = snapshot.amounts();
+        final var violations = snapshot.violations();
+
+        // cancelled packets over budget may never be counted, their violations still get a row.
+        int rowCount = 0;
+        for(int index = 0; index < amounts.length; index++) {
+            if(amounts[index] != 0 || violations[index] != 0) {
+                rowCount++;
+            }
+        }
+
+        if(segment == null
+            || !segment.fits(rowCount, snapshot.collectedAt())
+            || !Constants.folderName(snapshot.collectedAt()).equals(segmentFolderName)) {
+            roll(snapshot.collectedAt());
+        }
+
+        for(int index = 0; index < amounts.length; index++) {
+            if(amounts[index] != 0 || violations[index] != 0) {
+                segment.append(
+                    snapshot.collectedAt(),
+                    index,
+                    amounts[index],
+                    snapshot.sizes()[index],
+                    snapshot.wireSizes()[index],
+                    violations[index],
+                    (int) snapshot.maxSizes()[index],
+                    (int) snapshot.sizePercentile(index, 0.5),
+                    (int) snapshot.sizePercentile(index, 0.9),
+                    (int) snapshot.sizePercentile(index, 0.99)
+                );
+            }
+        }
+        segment.commit();
+        bytesWritten += (long) rowCount * ColumnarSegment.ROW_BYTES;
+    }
+
+    @Override
+    public List<Path> activeFiles() {
+        final var file = segmentFile;
+        return file == null ? List.of() : List.of(file);
+    }
+
+    @Override
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void close() {
+        if(segment == null) {
+            return;
+        }
+
+        seal();
+    }
+
+    /**
+     * Seal the current segment and start a new one.
+     * @param baseTimestamp the epoch millis of the first window of the new segment
+     * @throws IOException if the new segment couldn't be created
+     */
+    private void roll(long baseTimestamp) throws IOException {
+        if(segment != null) {
+            seal();
+        }
+
+        final var types = new ArrayList<ColumnarSegment.TypeEntry>(packetTypes.size());
+        for(int index = 0; index < packetTypes.size(); index++) {
+            types.add(new ColumnarSegment.TypeEntry(index, packetTypes.name(index), packetTypes.outgoing(index)));
+        }
+
+        final var folderName = Constants.folderName(baseTimestamp);
+        final var folder = dataFolder.resolve(folderName);
+        Files.createDirectories(folder);
+
+        final var file = folder.resolve("packets_%s.seg".formatted(baseTimestamp));
+        segment = ColumnarSegment.create(file, segmentRows, baseTimestamp, types);
+        segmentFile = file;
+        segmentFolderName = folderName;
+        log.info("Started packet segment {}", file.getFileName());
+    }
+
+    private void seal() {
+        segment.seal();
+        try {
+            segment.close();
+        } catch(IOException ex) {
+            log.error("Unable to close packet segment {}", segmentFile.getFileName(), ex);
+        }
+        segment = null;
+    }
+}
@@ -0,0 +1,436 @@
+package me.tech.packetlogger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An append-only, fixed-width columnar segment of packet windows.
+ * <p>
+ * Layout, all values big endian:
+ * <pre>
+ * header      magic, version, capacity, base timestamp, row count, sealed, columns offset, footer offset
+ * dictionary  type count, then (id, outgoing, name length, utf8 name) per type
+ * columns     int timestamp delta[capacity], int type id[capacity], long count[capacity], long bytes[capacity],
+ *             long wire bytes[capacity], long violations[capacity], int size max[capacity],
+ *             int size p50[capacity], int size p90[capacity], int size p99[capacity]
+ * footer      stripe rows, stripe count, then (min timestamp, max timestamp) per stripe
+ * </pre>
+ * Version 1 segments only have the first four columns, the others read as 0.
+ * The row count in the header is only bumped by {@link #commit()}, so a window is either fully
+ * visible or not at all. The footer is written by {@link #seal()}, segments that were never sealed
+ * (e.g. the proxy crashed) are still readable, their stripes are just rebuilt from the timestamps.
+ * <p>
+ * {@link ColumnarSegmentExporter} reads segments without a proxy, so this only uses `java.nio` and no Velocity or PacketEvents classes.
+ */
+public final class ColumnarSegment implements Closeable {
+    /** "PKTSEG01" */
+    private static final long MAGIC = 0x504B545345473031L;
+    private static final int VERSION = 2;
+    /** The version before wire bytes, violations and the size percentiles had a column. */
+    private static final int VERSION_1 = 1;
+
+    /** The bytes one row takes across the columns. */
+    public static final int ROW_BYTES = Integer.BYTES * 2 + Long.BYTES * 4 + Integer.BYTES * 4;
+    private static final int VERSION_1_ROW_BYTES = Integer.BYTES * 2 + Long.BYTES * 2;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int VERSION_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 12;
+    private static final int BASE_TIMESTAMP_OFFSET = 16;
+    private static final int ROWS_OFFSET = 24;
+    private static final int SEALED_OFFSET = 28;
+    private static final int COLUMNS_OFFSET = 32;
+    private static final int FOOTER_OFFSET = 36;
+
+    /** The amount of rows covered by one footer index entry. */
+    private static final int STRIPE_ROWS = 1024;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final long baseTimestamp;
+    private final List<TypeEntry> types;
+
+    private final int timestampColumn;
+    private final int typeColumn;
+    private final int countColumn;
+    private final int bytesColumn;
+    /** The columns below are -1 in version 1 segments. */
+    private final int wireBytesColumn;
+    private final int violationsColumn;
+    private final int sizeMaxColumn;
+    private final int sizeP50Column;
+    private final int sizeP90Column;
+    private final int sizeP99Column;
+    private final int footerOffset;
+
+    private final long[] stripeMin;
+    private final long[] stripeMax;
+
+    private int rows;
+    private int committedRows;
+
+    private ColumnarSegment(
+        final FileChannel channel,
+        final MappedByteBuffer buffer,
+        final int capacity,
+        final long baseTimestamp,
+        final List<TypeEntry> types,
+        final int columnsOffset,
+        final int version
+    ) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.baseTimestamp = baseTimestamp;
+        this.types = types;
+
+        this.timestampColumn = columnsOffset;
+        this.typeColumn = timestampColumn + Integer.BYTES * capacity;
+        this.countColumn = typeColumn + Integer.BYTES * capacity;
+        this.bytesColumn = countColumn + Long.BYTES * capacity;
+        if(version == VERSION_1) {
+            this.wireBytesColumn = -1;
+            this.violationsColumn = -1;
+            this.sizeMaxColumn = -1;
+            this.sizeP50Column = -1;
+            this.sizeP90Column = -1;
+            this.sizeP99Column = -1;
+            this.footerOffset = bytesColumn + Long.BYTES * capacity;
+        } else {
+            this.wireBytesColumn = bytesColumn + Long.BYTES * capacity;
+            this.violationsColumn = wireBytesColumn + Long.BYTES * capacity;
+            this.sizeMaxColumn = violationsColumn + Long.BYTES * capacity;
+            this.sizeP50Column = sizeMaxColumn + Integer.BYTES * capacity;
+            this.sizeP90Column = sizeP50Column + Integer.BYTES * capacity;
+            this.sizeP99Column = sizeP90Column + Integer.BYTES * capacity;
+            this.footerOffset = sizeP99Column + Integer.BYTES * capacity;
+        }
+
+        final var stripes = (capacity + STRIPE_ROWS - 1) / STRIPE_ROWS;
+        this.stripeMin = new long[stripes];
+        this.stripeMax = new long[stripes];
+        Arrays.fill(stripeMin, Long.MAX_VALUE);
+        Arrays.fill(stripeMax, Long.MIN_VALUE);
+    }
+
+    /**
+     * Create a new segment.
+     * @param file the segment file, it must not exist
+     * @param capacity the amount of rows the segment can hold
+     * @param baseTimestamp the epoch millis timestamps are stored relative to
+     * @param types the packet types the type ids refer to
+     * @return the {@link ColumnarSegment}
+     * @throws IOException if the segment couldn't be created
+     */
+    public static ColumnarSegment create(Path file, int capacity, long baseTimestamp, List<TypeEntry> types) throws IOException {
+        final var dictionary = encodeDictionary(types);
+        final var columnsOffset = align(HEADER_SIZE + dictionary.length);
+        final var stripes = (capacity + STRIPE_ROWS - 1) / STRIPE_ROWS;
+        final var size = (long) columnsOffset
+            + (long) ROW_BYTES * capacity
+            + Integer.BYTES * 2L + (long) stripes * Long.BYTES * 2;
+        if(size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Segment capacity %d is too large".formatted(capacity));
+        }
+
+        final var channel = FileChannel.open(file,
+            StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        final var segment = new ColumnarSegment(channel, buffer, capacity, baseTimestamp, types, columnsOffset, VERSION);
+
+        buffer.putLong(0, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putLong(BASE_TIMESTAMP_OFFSET, baseTimestamp);
+        buffer.putInt(ROWS_OFFSET, 0);
+        buffer.putInt(SEALED_OFFSET, 0);
+        buffer.putInt(COLUMNS_OFFSET, columnsOffset);
+        buffer.putInt(FOOTER_OFFSET, segment.footerOffset);
+        buffer.put(HEADER_SIZE, dictionary);
+
+        return segment;
+    }
+
+    /**
+     * Open an existing segment for reading.
+     * @param file the segment file
+     * @return the {@link ColumnarSegment}
+     * @throws IOException if the segment couldn't be read
+     */
+    public static ColumnarSegment open(Path file) throws IOException {
+        final var channel = FileChannel.open(file, StandardOpenOption.READ);
+        final var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+        final var version = buffer.getInt(VERSION_OFFSET);
+        if(buffer.getLong(0) != MAGIC || (version != VERSION && version != VERSION_1)) {
+            channel.close();
+            throw new IOException("%s is not a packet segment".formatted(file));
+        }
+
+        final var segment = new ColumnarSegment(
+            channel,
+            buffer,
+            buffer.getInt(CAPACITY_OFFSET),
+            buffer.getLong(BASE_TIMESTAMP_OFFSET),
+            decodeDictionary(buffer),
+            buffer.getInt(COLUMNS_OFFSET),
+            version
+        );
+        segment.rows = buffer.getInt(ROWS_OFFSET);
+        segment.committedRows = segment.rows;
+
+        if(buffer.getInt(SEALED_OFFSET) == 1) {
+            for(int i = 0; i < segment.stripeMin.length; i++) {
+                final var entry = segment.footerOffset + Integer.BYTES * 2 + i * Long.BYTES * 2;
+                segment.stripeMin[i] = buffer.getLong(entry);
+                segment.stripeMax[i] = buffer.getLong(entry + Long.BYTES);
+            }
+        } else {
+            for(int row = 0; row < segment.rows; row++) {
+                segment.index(row, segment.timestamp(row));
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Whether a window of rows still fits into this segment.
+     * @param rowCount the amount of rows in the window
+     * @param timestamp the epoch millis of the window
+     * @return whether it fits
+     */
+    public boolean fits(int rowCount, long timestamp) {
+        final var delta = timestamp - baseTimestamp;
+        return rows + rowCount <= capacity && delta >= 0 && delta <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Append a row, it's not visible to readers until {@link #commit()}.
+     * @param timestamp the epoch millis of the row
+     * @param typeId the packet type id
+     * @param count the amount of packets
+     * @param bytes the total size of packets
+     * @param wireBytes the total size packets took on the wire
+     * @param violations the packets over a rate limit budget
+     * @param sizeMax the largest packet
+     * @param sizeP50 the estimated median packet size
+     * @param sizeP90 the estimated 90th percentile packet size
+     * @param sizeP99 the estimated 99th percentile packet size
+     */
+    public void append(long timestamp, int typeId, long count, long bytes, long wireBytes, long violations,
+                       int sizeMax, int sizeP50, int sizeP90, int sizeP99) {
+        final var row = rows++;
+        buffer.putInt(timestampColumn + row * Integer.BYTES, (int) (timestamp - baseTimestamp));
+        buffer.putInt(typeColumn + row * Integer.BYTES, typeId);
+        buffer.putLong(countColumn + row * Long.BYTES, count);
+        buffer.putLong(bytesColumn + row * Long.BYTES, bytes);
+        buffer.putLong(wireBytesColumn + row * Long.BYTES, wireBytes);
+        buffer.putLong(violationsColumn + row * Long.BYTES, violations);
+        buffer.putInt(sizeMaxColumn + row * Integer.BYTES, sizeMax);
+        buffer.putInt(sizeP50Column + row * Integer.BYTES, sizeP50);
+        buffer.putInt(sizeP90Column + row * Integer.BYTES, sizeP90);
+        buffer.putInt(sizeP99Column + row * Integer.BYTES, sizeP99);
+        index(row, timestamp);
+    }
+
+    /**
+     * Publish every appended row.
+     */
+    public void commit() {
+        committedRows = rows;
+        buffer.putInt(ROWS_OFFSET, committedRows);
+    }
+
+    /**
+     * Write the footer index, mark the segment as sealed and force it to disk.
+     */
+    public void seal() {
+        buffer.putInt(footerOffset, STRIPE_ROWS);
+        buffer.putInt(footerOffset + Integer.BYTES, stripeMin.length);
+        for(int i = 0; i < stripeMin.length; i++) {
+            final var entry = footerOffset + Integer.BYTES * 2 + i * Long.BYTES * 2;
+            buffer.putLong(entry, stripeMin[i]);
+            buffer.putLong(entry + Long.BYTES, stripeMax[i]);
+        }
+        buffer.putInt(SEALED_OFFSET, 1);
+        buffer.force();
+    }
+
+    /**
+     * Find the rows that may fall into a time range using the footer index.
+     * @param from the inclusive epoch millis to start at
+     * @param to the inclusive epoch millis to end at
+     * @return the first row and the row after the last, the range is empty if they're equal
+     */
+    public int[] rowRange(long from, long to) {
+        int first = -1;
+        int last = -1;
+        for(int i = 0; i < stripeMin.length && i * STRIPE_ROWS < committedRows; i++) {
+            if(stripeMax[i] < from || stripeMin[i] > to) {
+                continue;
+            }
+            if(first == -1) {
+                first = i;
+            }
+            last = i;
+        }
+
+        if(first == -1) {
+            return new int[] { 0, 0 };
+        }
+        return new int[] { first * STRIPE_ROWS, Math.min((last + 1) * STRIPE_ROWS, committedRows) };
+    }
+
+    /**
+     * @return the amount of committed rows
+     */
+    public int rows() {
+        return committedRows;
+    }
+
+    /**
+     * @return the packet types the type ids refer to
+     */
+    public List<TypeEntry> types() {
+        return types;
+    }
+
+    /**
+     * @param row the row
+     * @return the epoch millis of a row
+     */
+    public long timestamp(int row) {
+        return baseTimestamp + buffer.getInt(timestampColumn + row * Integer.BYTES);
+    }
+
+    /**
+     * @param row the row
+     * @return the packet type id of a row
+     */
+    public int typeId(int row) {
+        return buffer.getInt(typeColumn + row * Integer.BYTES);
+    }
+
+    /**
+     * @param row the row
+     * @return the amount of packets of a row
+     */
+    public long count(int row) {
+        return buffer.getLong(countColumn + row * Long.BYTES);
+    }
+
+    /**
+     * @param row the row
+     * @return the total size of packets of a row
+     */
+    public long bytes(int row) {
+        return buffer.getLong(bytesColumn + row * Long.BYTES);
+    }
+
+    /**
+     * @param row the row
+     * @return the total size packets of a row took on the wire, 0 in version 1 segments
+     */
+    public long wireBytes(int row) {
+        return wireBytesColumn < 0 ? 0 : buffer.getLong(wireBytesColumn + row * Long.BYTES);
+    }
+
+    /**
+     * @param row the row
+     * @return the packets over a rate limit budget of a row, 0 in version 1 segments
+     */
+    public long violations(int row) {
+        return violationsColumn < 0 ? 0 : buffer.getLong(violationsColumn + row * Long.BYTES);
+    }
+
+    /**
+     * @param row the row
+     * @return the largest packet of a row, 0 in version 1 segments
+     */
+    public int sizeMax(int row) {
+        return sizeMaxColumn < 0 ? 0 : buffer.getInt(sizeMaxColumn + row * Integer.BYTES);
+    }
+
+    /**
+     * @param row the row
+     * @param percentile 50, 90 or 99
+     * @return the estimated packet size percentile of a row, 0 in version 1 segments
+     */
+    public int sizePercentile(int row, int percentile) {
+        final var column = switch(percentile) {
+            case 50 -> sizeP50Column;
+            case 90 -> sizeP90Column;
+            case 99 -> sizeP99Column;
+            default -> throw new IllegalArgumentException("No column for percentile %d".formatted(percentile));
+        };
+        return column < 0 ? 0 : buffer.getInt(column + row * Integer.BYTES);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void index(int row, long timestamp) {
+        final var stripe = row / STRIPE_ROWS;
+        stripeMin[stripe] = Math.min(stripeMin[stripe], timestamp);
+        stripeMax[stripe] = Math.max(stripeMax[stripe], timestamp);
+    }
+
+    private static int align(int offset) {
+        return (offset + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    private static byte[] encodeDictionary(List<TypeEntry> types) {
+        final var names = new ArrayList<byte[]>(types.size());
+        var size = Integer.BYTES;
+        for(final var type : types) {
+            final var name = type.name().getBytes(StandardCharsets.UTF_8);
+            names.add(name);
+            size += Integer.BYTES + 1 + Short.BYTES + name.length;
+        }
+
+        final var buffer = ByteBuffer.allocate(size);
+        buffer.putInt(types.size());
+        for(int i = 0; i < types.size(); i++) {
+            final var name = names.get(i);
+            buffer.putInt(types.get(i).id());
+            buffer.put((byte) (types.get(i).outgoing() ? 1 : 0));
+            buffer.putShort((short) name.length);
+            buffer.put(name);
+        }
+        return buffer.array();
+    }
+
+    private static List<TypeEntry> decodeDictionary(ByteBuffer segment) {
+        final var buffer = segment.duplicate().position(HEADER_SIZE);
+        final var count = buffer.getInt();
+        final var types = new ArrayList<TypeEntry>(count);
+        for(int i = 0; i < count; i++) {
+            final var id = buffer.getInt();
+            final var outgoing = buffer.get() == 1;
+            final var name = new byte[buffer.getShort()];
+            buffer.get(name);
+            types.add(new TypeEntry(id, new String(name, StandardCharsets.UTF_8), outgoing));
+        }
+        return types;
+    }
+
+    /**
+     * A packet type of the segment dictionary.
+     * @param id the id rows refer to
+     * @param name the packet name
+     * @param outgoing whether it's incoming or outgoing
+     */
+    public record TypeEntry(int id, String name, boolean outgoing) {}
+}
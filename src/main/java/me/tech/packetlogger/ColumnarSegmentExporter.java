@@ -0,0 +1,181 @@
+package me.tech.packetlogger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Converts {@link ColumnarSegment}s into the SQLite schema so `scripts/graph.py` can read them.
+ * With `--from` and `--to` only the rows of a time range are exported, the footer index of every
+ * segment narrows the rows that are read down to the stripes that overlap it.
+ * <p>
+ * Usage: {@code java -cp packet-logger-velocity.jar me.tech.packetlogger.ColumnarSegmentExporter [--from <time>] [--to <time>] <output.sqlite> <segment or folder>...}
+ * where a time is epoch millis or an ISO-8601 instant such as {@code 2025-01-31T18:00:00Z}.
+ */
+public final class ColumnarSegmentExporter {
+    private ColumnarSegmentExporter() {}
+
+    public static void main(String[] args) throws Exception {
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        int arg = 0;
+        while(arg + 1 < args.length && args[arg].startsWith("--")) {
+            switch(args[arg]) {
+                case "--from" -> from = parseTime(args[arg + 1]);
+                case "--to" -> to = parseTime(args[arg + 1]);
+                default -> usage();
+            }
+            arg += 2;
+        }
+        if(args.length - arg < 2) {
+            usage();
+        }
+
+        final var segments = new ArrayList<Path>();
+        for(int i = arg + 1; i < args.length; i++) {
+            segments.addAll(findSegments(Path.of(args[i])));
+        }
+
+        final var rows = export(Path.of(args[arg]), segments, from, to);
+        System.out.printf("Exported %d rows from %d segments into %s%n", rows, segments.size(), args[arg]);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: ColumnarSegmentExporter [--from <time>] [--to <time>] <output.sqlite> <segment or folder>...");
+        System.exit(1);
+    }
+
+    /**
+     * @param time epoch millis or an ISO-8601 instant
+     * @return the epoch millis
+     */
+    private static long parseTime(String time) {
+        try {
+            return Long.parseLong(time);
+        } catch(NumberFormatException ex) {
+            return Instant.parse(time).toEpochMilli();
+        }
+    }
+
+    /**
+     * Export segments into a SQLite file, creating the schema if needed.
+     * @param output the SQLite file
+     * @param segments the segment files
+     * @return the amount of rows exported
+     * @throws IOException if a segment couldn't be read
+     * @throws SQLException if the SQLite file couldn't be written
+     */
+    public static long export(Path output, List<Path> segments) throws IOException, SQLException {
+        return export(output, segments, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Export the rows of a time range from segments into a SQLite file, creating the schema if needed.
+     * @param output the SQLite file
+     * @param segments the segment files
+     * @param from the inclusive epoch millis to start at
+     * @param to the inclusive epoch millis to end at
+     * @return the amount of rows exported
+     * @throws IOException if a segment couldn't be read
+     * @throws SQLException if the SQLite file couldn't be written
+     */
+    public static long export(Path output, List<Path> segments, long from, long to) throws IOException, SQLException {
+        try(final var conn = DriverManager.getConnection("jdbc:sqlite:%s".formatted(output.toAbsolutePath()))) {
+            PacketSchema.create(conn);
+            conn.setAutoCommit(false);
+
+            long rows = 0;
+            for(final var file : segments) {
+                // archived segments are decompressed next to the output, segments have to be mapped from a file.
+                final var archived = file.getFileName().toString().endsWith(PacketArchiver.ARCHIVE_SUFFIX);
+                final var source = archived ? PacketArchiver.extract(file, output.toAbsolutePath().getParent()) : file;
+                try(final var segment = ColumnarSegment.open(source)) {
+                    rows += export(conn, segment, from, to);
+                } finally {
+                    if(archived) {
+                        Files.deleteIfExists(source);
+                    }
+                }
+            }
+
+            PacketSchema.rebuildRollups(conn);
+            conn.commit();
+            return rows;
+        }
+    }
+
+    private static long export(Connection conn, ColumnarSegment segment, long from, long to) throws SQLException {
+        final var range = segment.rowRange(from, to);
+        if(range[0] == range[1]) {
+            return 0;
+        }
+
+        final var typeIds = new HashMap<Integer, Integer>();
+        try(final var insertType = conn.prepareStatement("INSERT OR IGNORE INTO packet_type (name, outgoing) VALUES (?, ?)");
+            final var selectType = conn.prepareStatement("SELECT id FROM packet_type WHERE name = ? AND outgoing = ?")) {
+            for(final var type : segment.types()) {
+                insertType.setString(1, type.name());
+                insertType.setBoolean(2, type.outgoing());
+                insertType.executeUpdate();
+
+                selectType.setString(1, type.name());
+                selectType.setBoolean(2, type.outgoing());
+                try(final var rs = selectType.executeQuery()) {
+                    rs.next();
+                    typeIds.put(type.id(), rs.getInt(1));
+                }
+            }
+        }
+
+        final String sql = "INSERT INTO batched_packets (packet_type_id, amount, size_bytes, size_p50, size_p90, size_p99, size_max, wire_bytes, violations, collected_at) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        long rows = 0;
+        try(final var statement = conn.prepareStatement(sql)) {
+            // the index is per stripe, the rows at its edges still have to be checked.
+            for(int row = range[0]; row < range[1]; row++) {
+                final var timestamp = segment.timestamp(row);
+                if(timestamp < from || timestamp > to) {
+                    continue;
+                }
+                statement.setInt(1, typeIds.get(segment.typeId(row)));
+                statement.setLong(2, segment.count(row));
+                statement.setLong(3, segment.bytes(row));
+                statement.setLong(4, segment.sizePercentile(row, 50));
+                statement.setLong(5, segment.sizePercentile(row, 90));
+                statement.setLong(6, segment.sizePercentile(row, 99));
+                statement.setLong(7, segment.sizeMax(row));
+                statement.setLong(8, segment.wireBytes(row));
+                statement.setLong(9, segment.violations(row));
+                statement.setLong(10, timestamp);
+                statement.addBatch();
+                rows++;
+            }
+            statement.executeBatch();
+        }
+        return rows;
+    }
+
+    private static List<Path> findSegments(Path path) throws IOException {
+        if(!Files.isDirectory(path)) {
+            return List.of(path);
+        }
+
+        try(final Stream<Path> files = Files.walk(path)) {
+            return files.filter((file) -> {
+                    final var name = file.getFileName().toString();
+                    return name.endsWith(".seg") || name.endsWith(".seg" + PacketArchiver.ARCHIVE_SUFFIX);
+                })
+                .filter((file) -> !PacketArchiver.isSuperseded(file))
+                .sorted()
+                .toList();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package me.tech.packetlogger;
+
+import com.velocitypowered.api.event.Subscribe;
+import com.velocitypowered.api.event.connection.DisconnectEvent;
+import com.velocitypowered.api.event.connection.PostLoginEvent;
+import com.velocitypowered.api.event.player.ServerConnectedEvent;
+import com.velocitypowered.api.proxy.Player;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks packets per player and per backend server.
+ * Players and servers are interned to small int ids, and every connection owns a
+ * counter array for the (player, server) pair it's currently on, so the hot path is a
+ * single {@link UUID} lookup followed by an array increment.
+ * A player's id is evicted once none of its counters are left to drain, so the ids only
+ * grow with the players online, a player that comes back is interned again under a new id.
+ */
+public final class ConnectionDimensions {
+    /** The server id used while a player hasn't been connected to a backend yet. */
+    public static final int NO_SERVER = -1;
+
+    private final int slots;
+
+    /** Guarded by this, together with {@link #active}, so an id is never evicted while a player is being tracked with it. */
+    private final Map<UUID, Integer> playerIds = new ConcurrentHashMap<>();
+    private final Map<String, Integer> serverIds = new ConcurrentHashMap<>();
+    private final AtomicInteger nextPlayerId = new AtomicInteger(1);
+    private final AtomicInteger nextServerId = new AtomicInteger(1);
+
+    private final Queue<PlayerEntry> pendingPlayers = new ConcurrentLinkedQueue<>();
+    private final Queue<ServerEntry> pendingServers = new ConcurrentLinkedQueue<>();
+
+    private final Map<UUID, ConnectionCounters> active = new ConcurrentHashMap<>();
+    private final Queue<ConnectionCounters> retired = new ConcurrentLinkedQueue<>();
+    /** The amount of (connection, packet type) records counted into since they were last drained. */
+    private final AtomicInteger dirtyRecords = new AtomicInteger();
+
+    public ConnectionDimensions(int slots) {
+        this.slots = slots;
+    }
+
+    /**
+     * Count a packet against the connection of a player.
+     * @param uuid the player uuid
+     * @param index the packet type slot
+     * @param size the packet size in bytes
+     */
+    public void record(UUID uuid, int index, int size) {
+        final var counters = active.get(uuid);
+        if(counters != null && counters.record(index, size)) {
+            dirtyRecords.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the amount of records the next snapshot will hold
+     */
+    public int dirtyRecords() {
+        return dirtyRecords.get();
+    }
+
+    @Subscribe
+    public void onPostLogin(PostLoginEvent event) {
+        track(event.getPlayer(), NO_SERVER);
+    }
+
+    @Subscribe
+    public void onServerConnected(ServerConnectedEvent event) {
+        final var serverName = event.getServer().getServerInfo().getName();
+        final var serverId = serverIds.computeIfAbsent(serverName, (k) -> {
+            final var id = nextServerId.getAndIncrement();
+            pendingServers.add(new ServerEntry(id, serverName));
+            return id;
+        });
+
+        track(event.getPlayer(), serverId);
+    }
+
+    @Subscribe
+    public void onDisconnect(DisconnectEvent event) {
+        final var previous = active.remove(event.getPlayer().getUniqueId());
+        if(previous != null) {
+            retired.add(previous);
+        }
+    }
+
+    /**
+     * Start counting a player against a server, retiring the counters of the previous server.
+     * @param player the player
+     * @param serverId the interned server id
+     */
+    private synchronized void track(Player player, int serverId) {
+        final var uuid = player.getUniqueId();
+        final var playerId = playerIds.computeIfAbsent(uuid, (k) -> {
+            final var id = nextPlayerId.getAndIncrement();
+            pendingPlayers.add(new PlayerEntry(id, uuid, player.getUsername()));
+            return id;
+        });
+
+        final var previous = active.put(uuid, new ConnectionCounters(uuid, playerId, serverId, slots));
+        if(previous != null) {
+            retired.add(previous);
+        }
+    }
+
+    /**
+     * Drain every connection into a snapshot.
+     * Retired counters are drained twice before being dropped, as an event loop can still
+     * be holding them while the player switches servers. Once a player that left has no
+     * counters left, its id is evicted.
+     * @return the drained {@link Snapshot}
+     */
+    public Snapshot snapshot() {
+        final var evictedPlayers = new ArrayList<Integer>();
+        final var records = new ArrayList<Record>();
+        for(final var counters : active.values()) {
+            counters.drain(records);
+        }
+
+        for(final Iterator<ConnectionCounters> it = retired.iterator(); it.hasNext(); ) {
+            final var counters = it.next();
+            counters.drain(records);
+            if(++counters.retiredDrains >= 2) {
+                it.remove();
+                evict(counters, evictedPlayers);
+            }
+        }
+
+        dirtyRecords.addAndGet(-records.size());
+        return new Snapshot(records, drainQueue(pendingPlayers), drainQueue(pendingServers), evictedPlayers);
+    }
+
+    /**
+     * Evict the id of dropped counters, unless the player is still online or already got another id.
+     */
+    private synchronized void evict(ConnectionCounters counters, List<Integer> evictedPlayers) {
+        if(active.containsKey(counters.uuid)) {
+            return;
+        }
+        for(final var retiredCounters : retired) {
+            if(retiredCounters.playerId == counters.playerId) {
+                return;
+            }
+        }
+        if(playerIds.remove(counters.uuid, counters.playerId)) {
+            evictedPlayers.add(counters.playerId);
+        }
+    }
+
+    private static <T> List<T> drainQueue(Queue<T> queue) {
+        final var drained = new ArrayList<T>();
+        T entry;
+        while((entry = queue.poll()) != null) {
+            drained.add(entry);
+        }
+        return drained;
+    }
+
+    private static final class ConnectionCounters {
+        private final UUID uuid;
+        private final int playerId;
+        private final int serverId;
+        private final AtomicLongArray amounts;
+        private final AtomicLongArray sizes;
+
+        /** Only touched by the flushing thread. */
+        private int retiredDrains;
+
+        private ConnectionCounters(UUID uuid, int playerId, int serverId, int slots) {
+            this.uuid = uuid;
+            this.playerId = playerId;
+            this.serverId = serverId;
+            this.amounts = new AtomicLongArray(slots);
+            this.sizes = new AtomicLongArray(slots);
+        }
+
+        /**
+         * @return true if this is the first packet of the slot since it was last drained
+         */
+        private boolean record(int index, int size) {
+            // a connection is pinned to one event loop, so these are uncontended.
+            sizes.getAndAdd(index, size);
+            return amounts.getAndIncrement(index) == 0;
+        }
+
+        private void drain(List<Record> records) {
+            for(int i = 0; i < amounts.length(); i++) {
+                if(amounts.get(i) == 0) {
+                    continue;
+                }
+
+                final var amount = amounts.getAndSet(i, 0);
+                final var size = sizes.getAndSet(i, 0);
+                records.add(new Record(i, playerId, serverId, amount, size));
+            }
+        }
+    }
+
+    /**
+     * The packets of one packet type on one connection.
+     * @param index the packet type slot
+     * @param playerId the interned player id
+     * @param serverId the interned server id, or {@link #NO_SERVER}
+     * @param amount the amount of packets
+     * @param size the total size of packets
+     */
+    public record Record(int index, int playerId, int serverId, long amount, long size) {}
+
+    /**
+     * A player that was interned since the last snapshot.
+     * @param id the interned id
+     * @param uuid the player uuid
+     * @param username the player username
+     */
+    public record PlayerEntry(int id, UUID uuid, String username) {}
+
+    /**
+     * A backend server that was interned since the last snapshot.
+     * @param id the interned id
+     * @param name the server name
+     */
+    public record ServerEntry(int id, String name) {}
+
+    /**
+     * A drained window of connection counters.
+     * @param records the per connection records
+     * @param players the players interned during the window
+     * @param servers the servers interned during the window
+     * @param evictedPlayers the ids of players that left, no later snapshot references them
+     */
+    public record Snapshot(List<Record> records, List<PlayerEntry> players, List<ServerEntry> servers, List<Integer> evictedPlayers) {
+        public static final Snapshot EMPTY = new Snapshot(List.of(), List.of(), List.of(), List.of());
+    }
+}
@@ -5,14 +5,27 @@ import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 
 public final class Constants {
-    /** The time the plugin started. */
-    public static final Instant NOW = Instant.now();
+    /** The folder `/packetlogger export` writes to, counted against the disk budget. */
+    public static final String EXPORTS_FOLDER_NAME = "exports";
+    /** The folder `/packetlogger dump` writes to, counted against the disk budget. */
+    public static final String CAPTURES_FOLDER_NAME = "captures";
 
-    /** The format for the folder the SQLite DB is contained in. */
-    public static final String DB_FOLDER_NAME = DateTimeFormatter.ofPattern("yyyy-MM-dd")
-        .withZone(ZoneId.systemDefault())
-        .format(NOW);
+    private static final DateTimeFormatter FOLDER_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd")
+        .withZone(ZoneId.systemDefault());
 
-    /** The format for the SQLite file name. */
-    public static final String SQLITE_FILE_NAME = "packets_%s.sqlite".formatted(NOW.toEpochMilli());
+    /**
+     * @param epochMillis the time the file starts at
+     * @return the date folder name of a time
+     */
+    public static String folderName(long epochMillis) {
+        return FOLDER_FORMAT.format(Instant.ofEpochMilli(epochMillis));
+    }
+
+    /**
+     * @param epochMillis the time the file starts at
+     * @return the SQLite file name of a time
+     */
+    public static String sqliteFileName(long epochMillis) {
+        return "packets_%s.sqlite".formatted(epochMillis);
+    }
 }
@@ -0,0 +1,233 @@
+package me.tech.packetlogger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+/**
+ * Finds the connections sending or receiving the most packets of a few packet types.
+ * Every tracked packet type gets a Count-Min sketch of the packets per connection and the
+ * K connections with the highest estimates, so memory is fixed no matter how many players
+ * are online. Both are cleared on every snapshot, so the top K is per window.
+ * <p>
+ * A packet costs `depth` hashed increments and nothing else. A connection only offers itself to
+ * the top K, which is locked, when its estimate reaches a power of two or, past {@link #OFFER_EVERY},
+ * a multiple of it, so the lock is taken a handful of times per connection and window. The counts
+ * in the top K are only used to rank candidates, the amounts are read from the sketch on snapshot.
+ * <p>
+ * Every slot has two sketches. A snapshot swaps the spare in before reading the current one, so
+ * counting never waits on it. The retired sketch is only cleared right before it's swapped back in,
+ * a packet counted into it after it was read is lost rather than counted in a later window.
+ */
+public final class HeavyHitters {
+    /** Connections past this estimate offer themselves every this many packets. */
+    private static final int OFFER_EVERY = 64;
+
+    private final int depth;
+    private final int widthMask;
+
+    /** The sketch packets are counted in per slot, null for slots that aren't tracked. */
+    private final AtomicReferenceArray<Sketch> sketches;
+    /** The sketch swapped in on the next snapshot per slot, cleared first, only touched by the flush thread. */
+    private final Sketch[] spares;
+
+    /**
+     * @param tracked whether each slot is tracked
+     * @param depth the amount of hash rows
+     * @param width the counters per row, rounded up to a power of two
+     * @param k the amount of connections kept per packet type
+     */
+    public HeavyHitters(boolean[] tracked, int depth, int width, int k) {
+        this.depth = depth;
+        this.widthMask = Integer.highestOneBit(Math.max(width - 1, 1)) * 2 - 1;
+        this.sketches = new AtomicReferenceArray<>(tracked.length);
+        this.spares = new Sketch[tracked.length];
+        for(int index = 0; index < tracked.length; index++) {
+            if(tracked[index]) {
+                sketches.set(index, new Sketch(depth * (widthMask + 1), k));
+                spares[index] = new Sketch(depth * (widthMask + 1), k);
+            }
+        }
+    }
+
+    /**
+     * Count a packet against a connection.
+     * @param index the packet type slot
+     * @param uuid the player uuid
+     */
+    public void record(int index, UUID uuid) {
+        final var sketch = sketches.get(index);
+        if(sketch == null) {
+            return;
+        }
+
+        final var hash = hash(uuid);
+        var estimate = Long.MAX_VALUE;
+        for(int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, sketch.cells.incrementAndGet(cell(hash, row)));
+        }
+
+        final var due = estimate < OFFER_EVERY ? (estimate & (estimate - 1)) == 0 : estimate % OFFER_EVERY == 0;
+        if(due && estimate > sketch.floor) {
+            sketch.offer(uuid, estimate);
+        }
+    }
+
+    /**
+     * @return the estimated amount of packets of a connection, never lower than the real amount
+     */
+    private long estimate(Sketch sketch, UUID uuid) {
+        final var hash = hash(uuid);
+        var estimate = Long.MAX_VALUE;
+        for(int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, sketch.cells.get(cell(hash, row)));
+        }
+        return estimate;
+    }
+
+    private static long hash(UUID uuid) {
+        return mix(uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Double hashing, the low half of the hash picks the column and the high half the step per row.
+     */
+    private int cell(long hash, int row) {
+        final var h1 = (int) hash;
+        final var h2 = (int) (hash >>> 32) | 1;
+        return row * (widthMask + 1) + ((h1 + row * h2) & widthMask);
+    }
+
+    /**
+     * Take the top K of every tracked packet type and start a new window on the spare sketches.
+     * A producer that loaded the old sketch right before the swap can still count into it. If that happens
+     * before the sketch is read the packet is in this window, otherwise it's lost: the old sketch is only
+     * cleared when it's swapped in again, so a late packet is never counted in a later window.
+     * Only called from the flush thread.
+     * @param usernames resolves the username of a player, called once per entry
+     * @return the entries, in rank order per packet type
+     */
+    public List<Entry> snapshot(Function<UUID, String> usernames) {
+        final var entries = new ArrayList<Entry>();
+        for(int index = 0; index < spares.length; index++) {
+            final var spare = spares[index];
+            if(spare != null) {
+                spare.clear();
+                final var retired = sketches.getAndSet(index, spare);
+                drain(retired, index, usernames, entries);
+                spares[index] = retired;
+            }
+        }
+        return entries;
+    }
+
+    private void drain(Sketch sketch, int index, Function<UUID, String> usernames, List<Entry> entries) {
+        final UUID[] keys;
+        synchronized(sketch) {
+            keys = Arrays.copyOf(sketch.keys, sketch.size);
+        }
+
+        final var amounts = new long[keys.length];
+        final var order = new Integer[keys.length];
+        for(int i = 0; i < keys.length; i++) {
+            amounts[i] = estimate(sketch, keys[i]);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(amounts[b], amounts[a]));
+
+        for(int rank = 0; rank < keys.length; rank++) {
+            final var uuid = keys[order[rank]];
+            entries.add(new Entry(index, rank + 1, uuid, usernames.apply(uuid), amounts[order[rank]]));
+        }
+    }
+
+    /**
+     * The finalizer of MurmurHash3, spreads the uuid bits over both halves.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static final class Sketch {
+        private final AtomicLongArray cells;
+        private final UUID[] keys;
+        private final long[] counts;
+        private int size;
+        /** The smallest count in a full top K, estimates at or below it can't get in. */
+        private volatile long floor;
+
+        private Sketch(int cells, int k) {
+            this.cells = new AtomicLongArray(cells);
+            this.keys = new UUID[k];
+            this.counts = new long[k];
+        }
+
+        private synchronized void offer(UUID uuid, long estimate) {
+            int min = 0;
+            for(int i = 0; i < size; i++) {
+                if(keys[i].equals(uuid)) {
+                    counts[i] = Math.max(counts[i], estimate);
+                    updateFloor();
+                    return;
+                }
+                if(counts[i] < counts[min]) {
+                    min = i;
+                }
+            }
+
+            if(size < keys.length) {
+                keys[size] = uuid;
+                counts[size] = estimate;
+                size++;
+            } else if(estimate > counts[min]) {
+                keys[min] = uuid;
+                counts[min] = estimate;
+            }
+            updateFloor();
+        }
+
+        private void updateFloor() {
+            if(size < keys.length) {
+                return;
+            }
+
+            var min = Long.MAX_VALUE;
+            for(final var count : counts) {
+                min = Math.min(min, count);
+            }
+            floor = min;
+        }
+
+        /**
+         * Zero the counters and empty the top K.
+         */
+        private synchronized void clear() {
+            for(int i = 0; i < cells.length(); i++) {
+                cells.set(i, 0);
+            }
+            Arrays.fill(keys, null);
+            Arrays.fill(counts, 0);
+            size = 0;
+            floor = 0;
+        }
+    }
+
+    /**
+     * One of the top K connections of a packet type.
+     * @param index the packet type slot
+     * @param rank the rank, 1 being the busiest
+     * @param uuid the player uuid
+     * @param username the player name, empty if they already left
+     * @param amount the estimated amount of packets, never lower than the real amount
+     */
+    public record Entry(int index, int rank, UUID uuid, String username, long amount) {}
+}
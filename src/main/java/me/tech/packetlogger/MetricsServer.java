@@ -0,0 +1,190 @@
+package me.tech.packetlogger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves live metrics in the Prometheus text format on `/metrics`.
+ * Everything is read from the in-memory counters, a scrape never touches the sink.
+ * Requests are handled on virtual threads so a slow scraper can't hold a platform thread.
+ */
+public final class MetricsServer {
+    private static final Logger log = LoggerFactory.getLogger(MetricsServer.class);
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final BatchedPacketsService service;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * The last reported totals, drained packets move from the live counters to the totals
+     * while a scrape reads them, so a series is never reported lower than it was.
+     */
+    private final long[] reportedAmounts;
+    private final long[] reportedSizes;
+    private final long[] reportedWireSizes;
+    private final long[] reportedViolations;
+
+    public MetricsServer(BatchedPacketsService service, String host, int port) throws IOException {
+        this.service = service;
+        this.reportedAmounts = new long[service.packetTypes().size()];
+        this.reportedSizes = new long[service.packetTypes().size()];
+        this.reportedWireSizes = new long[service.packetTypes().size()];
+        this.reportedViolations = new long[service.packetTypes().size()];
+
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", this::handle);
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+        log.info("Serving metrics on {}", server.getAddress());
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try(exchange) {
+            if(!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            final var body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    /**
+     * Render every metric.
+     * @return the Prometheus text exposition
+     */
+    private synchronized String render() {
+        final var packetTypes = service.packetTypes();
+        final var counters = service.counters();
+        final var stats = service.stats();
+        final var out = new StringBuilder(16384);
+
+        header(out, "packetlogger_packets_total", "counter", "Packets seen since startup.");
+        for(int i = 0; i < packetTypes.size(); i++) {
+            reportedAmounts[i] = Math.max(reportedAmounts[i], stats.totalAmount(i) + counters.amount(i));
+            if(reportedAmounts[i] != 0) {
+                sample(out, "packetlogger_packets_total", packetTypes, i, reportedAmounts[i]);
+            }
+        }
+
+        header(out, "packetlogger_bytes_total", "counter", "Decoded packet bytes seen since startup.");
+        for(int i = 0; i < packetTypes.size(); i++) {
+            reportedSizes[i] = Math.max(reportedSizes[i], stats.totalSize(i) + counters.size(i));
+            if(reportedSizes[i] != 0) {
+                sample(out, "packetlogger_bytes_total", packetTypes, i, reportedSizes[i]);
+            }
+        }
+
+        header(out, "packetlogger_wire_bytes_total", "counter", "Packet bytes sent or received on the wire since startup, compressed and framed.");
+        for(int i = 0; i < packetTypes.size(); i++) {
+            reportedWireSizes[i] = Math.max(reportedWireSizes[i], stats.totalWireSize(i) + counters.wireSize(i));
+            if(reportedWireSizes[i] != 0) {
+                sample(out, "packetlogger_wire_bytes_total", packetTypes, i, reportedWireSizes[i]);
+            }
+        }
+
+        header(out, "packetlogger_rate_limit_violations_total", "counter", "Packets over a connection's rate limit budget since startup.");
+        for(int i = 0; i < packetTypes.size(); i++) {
+            reportedViolations[i] = Math.max(reportedViolations[i], stats.totalViolations(i) + counters.violations(i));
+            if(reportedViolations[i] != 0) {
+                sample(out, "packetlogger_rate_limit_violations_total", packetTypes, i, reportedViolations[i]);
+            }
+        }
+
+        header(out, "packetlogger_packets_per_second", "gauge", "Packets per second over the last flush window.");
+        for(int i = 0; i < packetTypes.size(); i++) {
+            final var rate = stats.packetRate(i);
+            if(rate != 0) {
+                sample(out, "packetlogger_packets_per_second", packetTypes, i, rate);
+            }
+        }
+
+        header(out, "packetlogger_bytes_per_second", "gauge", "Packet bytes per second over the last flush window.");
+        for(int i = 0; i < packetTypes.size(); i++) {
+            final var rate = stats.byteRate(i);
+            if(rate != 0) {
+                sample(out, "packetlogger_bytes_per_second", packetTypes, i, rate);
+            }
+        }
+
+        header(out, "packetlogger_flush_duration_seconds", "summary", "Time spent writing flushed windows.");
+        out.append("packetlogger_flush_duration_seconds_count ").append(stats.flushes()).append('\n');
+        out.append("packetlogger_flush_duration_seconds_sum ").append(seconds(stats.flushNanos())).append('\n');
+
+        header(out, "packetlogger_last_flush_duration_seconds", "gauge", "Time spent writing the last flushed window.");
+        out.append("packetlogger_last_flush_duration_seconds ").append(seconds(stats.lastFlushNanos())).append('\n');
+
+        header(out, "packetlogger_rows_written_total", "counter", "Rows written to storage.");
+        out.append("packetlogger_rows_written_total ").append(stats.rowsWritten()).append('\n');
+
+        header(out, "packetlogger_bytes_written_total", "counter", "Bytes written to storage.");
+        out.append("packetlogger_bytes_written_total ").append(stats.bytesWritten()).append('\n');
+
+        header(out, "packetlogger_add_duration_seconds", "summary", "Time spent counting sampled packets on the event loops.");
+        out.append("packetlogger_add_duration_seconds_count ").append(stats.sampledAdds()).append('\n');
+        out.append("packetlogger_add_duration_seconds_sum ").append(seconds(stats.addNanos())).append('\n');
+
+        header(out, "packetlogger_skipped_flushes_total", "counter", "Due flushes skipped as nothing was counted.");
+        out.append("packetlogger_skipped_flushes_total ").append(stats.skippedFlushes()).append('\n');
+
+        header(out, "packetlogger_deferred_flushes_total", "counter", "Due flushes held back while the previous one was still being written.");
+        out.append("packetlogger_deferred_flushes_total ").append(stats.deferredFlushes()).append('\n');
+
+        header(out, "packetlogger_writer_queue_depth", "gauge", "Windows waiting for the writer.");
+        out.append("packetlogger_writer_queue_depth ").append(service.queueDepth()).append('\n');
+
+        header(out, "packetlogger_writer_lag_seconds", "gauge", "Age of the oldest window not written yet.");
+        out.append("packetlogger_writer_lag_seconds ").append(seconds(TimeUnit.MILLISECONDS.toNanos(service.writerLagMillis()))).append('\n');
+
+        header(out, "packetlogger_dropped_records_total", "counter", "Rows lost because a write failed or the writer was full.");
+        out.append("packetlogger_dropped_records_total ").append(stats.droppedRecords()).append('\n');
+
+        header(out, "packetlogger_exporter_dropped_windows_total", "counter", "Windows an exporter dropped because its queue was full or the export failed.");
+        for(final var exporter : service.exporters()) {
+            out.append("packetlogger_exporter_dropped_windows_total{exporter=\"").append(exporter.name())
+                .append("\"} ").append(exporter.droppedWindows()).append('\n');
+        }
+
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, PacketTypeIndex packetTypes, int index, Object value) {
+        out.append(name)
+            .append("{packet=\"").append(packetTypes.name(index))
+            .append("\",direction=\"").append(packetTypes.outgoing(index) ? "outgoing" : "incoming")
+            // packets like KEEP_ALIVE have a slot per protocol state, without it their series would collide.
+            .append("\",state=\"").append(packetTypes.state(index))
+            .append("\"} ").append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.6f", nanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,157 @@
+package me.tech.packetlogger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends every window to a file as OTLP JSON, one `ExportMetricsServiceRequest` per line,
+ * which the OpenTelemetry Collector's `otlpjsonfile` receiver can tail.
+ * After a dropped window the next delta window starts at that window's end, so no point claims counts it doesn't contain.
+ * A file is kept per date folder so retention handles it like the packet logs.
+ */
+public final class OtlpFilePacketSink implements PacketSink {
+    private static final Logger log = LoggerFactory.getLogger(OtlpFilePacketSink.class);
+
+    public static final String FILE_NAME = "metrics.otlp.jsonl";
+    /** AGGREGATION_TEMPORALITY_DELTA, every window only holds what was counted since the previous one. */
+    private static final int DELTA = 1;
+
+    private final Path dataFolder;
+    private final PacketTypeIndex packetTypes;
+    private final String serviceName;
+
+    private BufferedWriter writer;
+    private String folderName;
+    /** Read by retention, so it never deletes the file being written. */
+    private volatile Path file;
+    private long windowStart;
+    private long bytesWritten;
+
+    /**
+     * @param dataFolder the plugin data folder
+     * @param packetTypes the slot index
+     * @param serviceName the `service.name` resource attribute
+     */
+    public OtlpFilePacketSink(Path dataFolder, PacketTypeIndex packetTypes, String serviceName) {
+        this.dataFolder = dataFolder;
+        this.packetTypes = packetTypes;
+        this.serviceName = serviceName;
+    }
+
+    @Override
+    public void open() {
+        windowStart = Instant.now().toEpochMilli();
+    }
+
+    @Override
+    public void write(PacketSnapshot snapshot) throws IOException {
+        final var rows = PacketQuery.fromTotals(packetTypes, snapshot.amounts(), snapshot.sizes());
+        final var start = TimeUnit.MILLISECONDS.toNanos(Math.min(windowStart, snapshot.collectedAt()));
+        final var end = TimeUnit.MILLISECONDS.toNanos(snapshot.collectedAt());
+        windowStart = snapshot.collectedAt();
+        if(rows.isEmpty()) {
+            return;
+        }
+
+        final var line = new StringBuilder(4096);
+        line.append("{\"resourceMetrics\":[{\"resource\":{\"attributes\":[");
+        attribute(line, "service.name", serviceName);
+        line.append("]},\"scopeMetrics\":[{\"scope\":{\"name\":\"packetlogger\"},\"metrics\":[");
+        sum(line, "packetlogger.packets", "{packet}", rows, start, end, false);
+        line.append(',');
+        sum(line, "packetlogger.bytes", "By", rows, start, end, true);
+        line.append("]}]}]}\n");
+
+        roll(snapshot.collectedAt());
+        writer.write(line.toString());
+        writer.flush();
+        bytesWritten += line.length();
+    }
+
+    @Override
+    public void dropped(long collectedAt) {
+        windowStart = Math.max(windowStart, collectedAt);
+    }
+
+    /**
+     * Append a monotonic delta sum with a data point per row.
+     */
+    private static void sum(StringBuilder line, String name, String unit, List<PacketQuery.Row> rows, long start, long end, boolean bytes) {
+        line.append("{\"name\":\"").append(name).append("\",\"unit\":\"").append(unit)
+            .append("\",\"sum\":{\"aggregationTemporality\":").append(DELTA).append(",\"isMonotonic\":true,\"dataPoints\":[");
+        for(int i = 0; i < rows.size(); i++) {
+            final var row = rows.get(i);
+            if(i > 0) {
+                line.append(',');
+            }
+            line.append("{\"attributes\":[");
+            attribute(line, "packet", row.name());
+            line.append(',');
+            attribute(line, "direction", row.outgoing() ? "outgoing" : "incoming");
+            // 64 bit integers are strings in OTLP JSON.
+            line.append("],\"startTimeUnixNano\":\"").append(start)
+                .append("\",\"timeUnixNano\":\"").append(end)
+                .append("\",\"asInt\":\"").append(bytes ? row.size() : row.amount()).append("\"}");
+        }
+        line.append("]}}");
+    }
+
+    private static void attribute(StringBuilder line, String key, String value) {
+        line.append("{\"key\":\"").append(key).append("\",\"value\":{\"stringValue\":\"")
+            .append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"}}");
+    }
+
+    /**
+     * Switch to the file of the date folder a window falls in.
+     * @param collectedAt the epoch millis of the window
+     * @throws IOException if the file couldn't be opened
+     */
+    private void roll(long collectedAt) throws IOException {
+        final var name = Constants.folderName(collectedAt);
+        if(writer != null && name.equals(folderName)) {
+            return;
+        }
+
+        close();
+        final var folder = dataFolder.resolve(name);
+        Files.createDirectories(folder);
+        file = folder.resolve(FILE_NAME);
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        folderName = name;
+    }
+
+    @Override
+    public List<Path> activeFiles() {
+        final var current = file;
+        return current == null ? List.of() : List.of(current);
+    }
+
+    @Override
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void close() {
+        if(writer == null) {
+            return;
+        }
+
+        try {
+            writer.close();
+        } catch(IOException ex) {
+            log.error("Unable to close OTLP metrics file {}", file.getFileName(), ex);
+        }
+        writer = null;
+    }
+}
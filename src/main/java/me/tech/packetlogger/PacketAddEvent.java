@@ -0,0 +1,28 @@
+package me.tech.packetlogger;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for a sampled {@link BatchedPacketsService#add} call, its duration is the time spent counting the packet.
+ */
+@Name("me.tech.packetlogger.PacketAdd")
+@Label("Packet Add")
+@Category("PacketLogger")
+@Description("A sampled packet counted by the packet listener")
+@StackTrace(false)
+public final class PacketAddEvent extends jdk.jfr.Event {
+    @Label("Packet Type")
+    public String packetType;
+
+    @Label("Outgoing")
+    public boolean outgoing;
+
+    @Label("Size")
+    @DataAmount
+    public int size;
+}
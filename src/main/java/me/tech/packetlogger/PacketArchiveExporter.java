@@ -0,0 +1,224 @@
+package me.tech.packetlogger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Merges SQLite packet logs, archived or not, into a single SQLite file `scripts/graph.py` can read.
+ * Dictionary ids differ between files, so rows are remapped by packet name, player uuid and server name,
+ * and rollup buckets that show up in several files are added together.
+ * Files written before the `packet_type` dictionary, with a `packet_name` on every row and the direction
+ * in `packet_bound`, are mapped by name too and their rollups are built from their rows.
+ * <p>
+ * Usage: {@code java -cp packet-logger-velocity.jar me.tech.packetlogger.PacketArchiveExporter <output.sqlite> <file or folder>...}
+ */
+public final class PacketArchiveExporter {
+    private PacketArchiveExporter() {}
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2) {
+            System.err.println("Usage: PacketArchiveExporter <output.sqlite> <file or folder>...");
+            System.exit(1);
+        }
+
+        final var files = new ArrayList<Path>();
+        for(int i = 1; i < args.length; i++) {
+            files.addAll(findFiles(Path.of(args[i])));
+        }
+
+        export(Path.of(args[0]), files);
+        System.out.printf("Exported %d files into %s%n", files.size(), args[0]);
+    }
+
+    /**
+     * Merge packet logs into a SQLite file, creating the schema if needed.
+     * @param output the SQLite file
+     * @param files the `.sqlite` and `.sqlite.gz` files
+     * @throws IOException if an archive couldn't be decompressed
+     * @throws SQLException if a file couldn't be merged
+     */
+    public static void export(Path output, List<Path> files) throws IOException, SQLException {
+        try(final var conn = DriverManager.getConnection("jdbc:sqlite:%s".formatted(output.toAbsolutePath()))) {
+            PacketSchema.create(conn);
+
+            for(final var file : files) {
+                final var archived = file.getFileName().toString().endsWith(PacketArchiver.ARCHIVE_SUFFIX);
+                final var source = archived ? PacketArchiver.extract(file, output.toAbsolutePath().getParent()) : file;
+                try {
+                    merge(conn, source);
+                } finally {
+                    if(archived) {
+                        Files.deleteIfExists(source);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void merge(Connection conn, Path source) throws SQLException {
+        try(final var attach = conn.prepareStatement("ATTACH DATABASE ? AS src")) {
+            attach.setString(1, source.toAbsolutePath().toString());
+            attach.execute();
+        }
+
+        try(final var statement = conn.createStatement()) {
+            conn.setAutoCommit(false);
+            if(hasTable(conn, "batched_packets") && hasColumn(conn, "batched_packets", "packet_name")) {
+                mergeLegacy(conn, statement);
+                conn.commit();
+                return;
+            }
+
+            if(hasTable(conn, "packet_type")) {
+                statement.execute("INSERT OR IGNORE INTO packet_type (name, outgoing) SELECT name, outgoing FROM src.packet_type;");
+            }
+
+            if(hasTable(conn, "batched_packets")) {
+                statement.execute(("INSERT INTO batched_packets " +
+                    "(packet_type_id, amount, size_bytes, size_p50, size_p90, size_p99, size_max, wire_bytes, violations, collected_at) " +
+                    "SELECT t.id, b.amount, b.size_bytes, %s, %s, %s, %s, %s, %s, b.collected_at " +
+                    "FROM src.batched_packets b " + joinPacketType("b") + ";").formatted(
+                        column(conn, "batched_packets", "b", "size_p50"),
+                        column(conn, "batched_packets", "b", "size_p90"),
+                        column(conn, "batched_packets", "b", "size_p99"),
+                        column(conn, "batched_packets", "b", "size_max"),
+                        column(conn, "batched_packets", "b", "wire_bytes"),
+                        column(conn, "batched_packets", "b", "violations")
+                    ));
+            }
+
+            for(final var rollup : PacketSchema.ROLLUPS.keySet()) {
+                if(!hasTable(conn, rollup)) {
+                    continue;
+                }
+                // WHERE true keeps SQLite from reading ON CONFLICT as part of the join.
+                statement.execute(("INSERT INTO main.%s (bucket, packet_type_id, amount, size_bytes, size_max, wire_bytes, violations) " +
+                    "SELECT r.bucket, t.id, r.amount, r.size_bytes, %s, %s, %s FROM src.%s r " + joinPacketType("r") + " WHERE true " +
+                    "ON CONFLICT (bucket, packet_type_id) DO UPDATE SET " +
+                    "amount = amount + excluded.amount, size_bytes = size_bytes + excluded.size_bytes, " +
+                    "size_max = MAX(size_max, excluded.size_max), wire_bytes = wire_bytes + excluded.wire_bytes, " +
+                    "violations = violations + excluded.violations;")
+                    .formatted(rollup, column(conn, rollup, "r", "size_max"), column(conn, rollup, "r", "wire_bytes"), column(conn, rollup, "r", "violations"), rollup));
+            }
+
+            if(hasTable(conn, "connection_packets")) {
+                statement.execute("INSERT OR IGNORE INTO player (uuid, username) SELECT uuid, username FROM src.player;");
+                statement.execute("INSERT OR IGNORE INTO server (name) SELECT name FROM src.server;");
+                statement.execute("INSERT INTO connection_packets " +
+                    "(packet_type_id, player_id, server_id, amount, size_bytes, collected_at) " +
+                    "SELECT t.id, p.id, sv.id, c.amount, c.size_bytes, c.collected_at " +
+                    "FROM src.connection_packets c " + joinPacketType("c") +
+                    " JOIN src.player sp ON sp.id = c.player_id JOIN main.player p ON p.uuid = sp.uuid" +
+                    " LEFT JOIN src.server ss ON ss.id = c.server_id LEFT JOIN main.server sv ON sv.name = ss.name;");
+            }
+
+            if(hasTable(conn, "heavy_hitters")) {
+                statement.execute("INSERT INTO heavy_hitters " +
+                    "(packet_type_id, uuid, username, rank, amount, collected_at) " +
+                    "SELECT t.id, h.uuid, h.username, h.rank, h.amount, h.collected_at " +
+                    "FROM src.heavy_hitters h " + joinPacketType("h") + ";");
+            }
+            conn.commit();
+        } catch(SQLException ex) {
+            conn.rollback();
+            throw ex;
+        } finally {
+            conn.setAutoCommit(true);
+            try(final var statement = conn.createStatement()) {
+                statement.execute("DETACH DATABASE src;");
+            }
+        }
+    }
+
+    /**
+     * Merge a file written before the `packet_type` dictionary.
+     * Its rows carry the packet name, the direction is the one `packet_bound` first recorded for it.
+     * @param conn the connection to the output, with the file attached as `src`
+     * @param statement a statement on the connection
+     * @throws SQLException if the file couldn't be merged
+     */
+    private static void mergeLegacy(Connection conn, Statement statement) throws SQLException {
+        // without the directions the rows can't be told apart, the file never logged a packet.
+        if(!hasTable(conn, "packet_bound")) {
+            return;
+        }
+
+        final var bound = "(SELECT packet_name, outgoing FROM src.packet_bound " +
+            "WHERE id IN (SELECT MIN(id) FROM src.packet_bound GROUP BY packet_name))";
+        final var join = ("JOIN %s s ON s.packet_name = b.packet_name " +
+            "JOIN main.packet_type t ON t.name = s.packet_name AND t.outgoing = s.outgoing").formatted(bound);
+
+        statement.execute("INSERT OR IGNORE INTO packet_type (name, outgoing) SELECT packet_name, outgoing FROM %s;".formatted(bound));
+        statement.execute("INSERT INTO batched_packets (packet_type_id, amount, size_bytes, collected_at) " +
+            "SELECT t.id, b.amount, b.size_bytes, b.collected_at FROM src.batched_packets b " + join + ";");
+
+        for(final var rollup : PacketSchema.ROLLUPS.entrySet()) {
+            statement.execute(("INSERT INTO main.%s (bucket, packet_type_id, amount, size_bytes) " +
+                "SELECT b.collected_at / %d * %d, t.id, SUM(b.amount), SUM(b.size_bytes) FROM src.batched_packets b " + join +
+                " WHERE true GROUP BY 1, 2 " +
+                "ON CONFLICT (bucket, packet_type_id) DO UPDATE SET " +
+                "amount = amount + excluded.amount, size_bytes = size_bytes + excluded.size_bytes;")
+                .formatted(rollup.getKey(), rollup.getValue(), rollup.getValue()));
+        }
+    }
+
+    private static String joinPacketType(String alias) {
+        return ("JOIN src.packet_type s ON s.id = %s.packet_type_id " +
+            "JOIN main.packet_type t ON t.name = s.name AND t.outgoing = s.outgoing").formatted(alias);
+    }
+
+    /**
+     * @return a column of a source table, or 0 for files written before it existed
+     */
+    private static String column(Connection conn, String table, String alias, String column) throws SQLException {
+        return hasColumn(conn, table, column) ? alias + "." + column : "0";
+    }
+
+    private static boolean hasColumn(Connection conn, String table, String column) throws SQLException {
+        try(final var statement = conn.prepareStatement("SELECT 1 FROM pragma_table_info(?, 'src') WHERE name = ?")) {
+            statement.setString(1, table);
+            statement.setString(2, column);
+            try(final var rs = statement.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private static boolean hasTable(Connection conn, String table) throws SQLException {
+        try(final var statement = conn.prepareStatement("SELECT 1 FROM src.sqlite_master WHERE type = 'table' AND name = ?")) {
+            statement.setString(1, table);
+            try(final var rs = statement.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * @param path a packet log or a folder of them
+     * @return every `.sqlite` and `.sqlite.gz` file, sorted
+     * @throws IOException if the folder couldn't be walked
+     */
+    public static List<Path> findFiles(Path path) throws IOException {
+        if(!Files.isDirectory(path)) {
+            return List.of(path);
+        }
+
+        try(final Stream<Path> files = Files.walk(path)) {
+            return files.filter((file) -> {
+                    final var name = file.getFileName().toString();
+                    return name.endsWith(".sqlite") || name.endsWith(".sqlite" + PacketArchiver.ARCHIVE_SUFFIX);
+                })
+                .filter((file) -> !PacketArchiver.isSuperseded(file))
+                .sorted()
+                .toList();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package me.tech.packetlogger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses closed packet logs into `.gz` archives next to them.
+ * Files are streamed through gzip at a capped rate so archiving never competes with the
+ * writer for disk bandwidth, and an archive only replaces its file once it's complete.
+ * <p>
+ * {@link #extract(Path, Path)} is static and only needs `java.util.zip`, as {@link PacketArchiveExporter} calls it without a proxy.
+ */
+public final class PacketArchiver {
+    public static final String ARCHIVE_SUFFIX = ".gz";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final long minAgeMillis;
+    private final long maxBytesPerSecond;
+
+    /**
+     * @param minAgeMillis how long a file has to be untouched before it's archived
+     * @param maxBytesPerSecond the read rate to throttle to, 0 doesn't throttle
+     */
+    public PacketArchiver(long minAgeMillis, long maxBytesPerSecond) {
+        this.minAgeMillis = minAgeMillis;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * @param file a file in a date folder
+     * @return true if the file is a closed packet log old enough to archive
+     * @throws IOException if the file couldn't be read
+     */
+    public boolean shouldArchive(Path file) throws IOException {
+        final var name = file.getFileName().toString();
+        if(!name.endsWith(".sqlite") && !name.endsWith(".seg")) {
+            return false;
+        }
+        // a WAL next to it means the database wasn't closed cleanly or is still open.
+        if(Files.exists(file.resolveSibling(name + "-wal"))) {
+            return false;
+        }
+
+        return System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis() >= minAgeMillis;
+    }
+
+    /**
+     * Compress a file into `<file>.gz` and delete the original.
+     * @param file the file
+     * @return the archive
+     * @throws IOException if the archive couldn't be written, the original is kept
+     */
+    public Path archive(Path file) throws IOException {
+        final var archive = file.resolveSibling(file.getFileName() + ARCHIVE_SUFFIX);
+        final var partial = file.resolveSibling(file.getFileName() + ARCHIVE_SUFFIX + ".tmp");
+
+        try(final var in = Files.newInputStream(file);
+            final var out = new GZIPOutputStream(Files.newOutputStream(partial), BUFFER_SIZE)) {
+            copy(in, out);
+        } catch(IOException ex) {
+            Files.deleteIfExists(partial);
+            throw ex;
+        }
+
+        Files.move(partial, archive, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.delete(file);
+        return archive;
+    }
+
+    /**
+     * Copy a stream, sleeping whenever it gets ahead of the rate limit.
+     */
+    private void copy(InputStream in, OutputStream out) throws IOException {
+        final var buffer = new byte[BUFFER_SIZE];
+        final var start = System.nanoTime();
+        long copied = 0;
+
+        int read;
+        while((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+            copied += read;
+
+            if(maxBytesPerSecond > 0) {
+                final var aheadNanos = (long) (copied * 1e9 / maxBytesPerSecond) - (System.nanoTime() - start);
+                if(aheadNanos > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(aheadNanos);
+                    } catch(InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while archiving", ex);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * An archive is moved into place before its original is deleted, and a crash in between leaves both.
+     * @param file a packet log or an archive
+     * @return true if the file is an archive whose original still exists, so reading both would count it twice
+     */
+    public static boolean isSuperseded(Path file) {
+        final var name = file.getFileName().toString();
+        return name.endsWith(ARCHIVE_SUFFIX)
+            && Files.exists(file.resolveSibling(name.substring(0, name.length() - ARCHIVE_SUFFIX.length())));
+    }
+
+    /**
+     * Decompress an archive so it can be opened.
+     * @param archive the `.gz` archive
+     * @param folder the folder to decompress into
+     * @return the decompressed file, the caller deletes it
+     * @throws IOException if the archive couldn't be read
+     */
+    public static Path extract(Path archive, Path folder) throws IOException {
+        final var name = archive.getFileName().toString();
+        final var file = Files.createTempFile(folder, name.substring(0, name.length() - ARCHIVE_SUFFIX.length()) + ".", ".tmp");
+        try(final var in = new GZIPInputStream(Files.newInputStream(archive), BUFFER_SIZE)) {
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,181 @@
+package me.tech.packetlogger;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sampled full packet capture.
+ * Sampled payloads are copied into a preallocated off-heap ring buffer, the oldest records are
+ * overwritten once it's full and {@link #dump(Path, long)} writes the recent ones to a file.
+ * <p>
+ * Ring record layout: record length (aligned to 8, or {@link #PAD} for the unused end of the ring),
+ * packet type slot, captured at, original length, captured length, then the captured bytes.
+ * <p>
+ * Only sampled packets take the lock, and they never allocate.
+ */
+public final class PacketCapture {
+    private static final int HEADER_SIZE = 24;
+    private static final int PAD = -1;
+
+    /** "PKTCAP01" */
+    private static final long DUMP_MAGIC = 0x504B544341503031L;
+
+    private final PacketTypeIndex packetTypes;
+    /** 1 in N packets are sampled per slot, 0 never samples. */
+    private final int[] sampleRates;
+    private final int maxBytes;
+
+    private final ByteBuffer ring;
+    /** A view on the ring reused for every copy, so Netty can write into it without allocating. */
+    private final ByteBuffer view;
+
+    /** Absolute positions, the ring offset is the position modulo the capacity. */
+    private long head;
+    private long tail;
+
+    public PacketCapture(
+        final PacketTypeIndex packetTypes,
+        final int[] sampleRates,
+        final int capacity,
+        final int maxBytes
+    ) {
+        // the ring has to hold at least one record header and a byte of payload.
+        if(capacity < HEADER_SIZE + Long.BYTES) {
+            throw new IllegalArgumentException("Capture buffer must be at least %d bytes, got %d"
+                .formatted(HEADER_SIZE + Long.BYTES, capacity));
+        }
+        if(maxBytes < 0) {
+            throw new IllegalArgumentException("Capture max bytes can't be negative, got %d".formatted(maxBytes));
+        }
+        this.packetTypes = packetTypes;
+        this.sampleRates = sampleRates;
+        this.maxBytes = Math.min(maxBytes, capacity - HEADER_SIZE - Long.BYTES);
+
+        this.ring = ByteBuffer.allocateDirect(capacity & -Long.BYTES);
+        this.view = ring.duplicate();
+    }
+
+    /**
+     * Maybe copy a packet into the ring.
+     * @param index the packet type slot
+     * @param buffer the packet {@link ByteBuf}
+     * @param size the readable bytes of the packet
+     */
+    public void sample(int index, Object buffer, int size) {
+        final var rate = sampleRates[index];
+        if(rate == 0 || (rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0)) {
+            return;
+        }
+
+        final var byteBuf = (ByteBuf) buffer;
+        final var captured = Math.min(size, maxBytes);
+        final var recordLength = (HEADER_SIZE + captured + Long.BYTES - 1) & -Long.BYTES;
+
+        synchronized(this) {
+            final var offset = reserve(recordLength);
+
+            ring.putInt(offset, recordLength);
+            ring.putInt(offset + 4, index);
+            ring.putLong(offset + 8, System.currentTimeMillis());
+            ring.putInt(offset + 16, size);
+            ring.putInt(offset + 20, captured);
+
+            view.limit(offset + HEADER_SIZE + captured).position(offset + HEADER_SIZE);
+            byteBuf.getBytes(byteBuf.readerIndex(), view);
+        }
+    }
+
+    /**
+     * Write every record captured since a point in time to a file.
+     * @param file the dump file
+     * @param since the epoch millis to start at
+     * @return the amount of records written
+     * @throws IOException if the dump couldn't be written
+     */
+    public int dump(Path file, long since) throws IOException {
+        final byte[] copy;
+        final long start;
+        final long end;
+        synchronized(this) {
+            copy = new byte[ring.capacity()];
+            ring.get(0, copy);
+            start = tail;
+            end = head;
+        }
+
+        final var buffer = ByteBuffer.wrap(copy);
+        final var capacity = copy.length;
+
+        Files.createDirectories(file.getParent());
+        int records = 0;
+        try(final var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeLong(DUMP_MAGIC);
+
+            var position = start;
+            while(position < end) {
+                final var offset = (int) (position % capacity);
+                final var recordLength = capacity - offset < HEADER_SIZE ? PAD : buffer.getInt(offset);
+                if(recordLength == PAD) {
+                    position += capacity - offset;
+                    continue;
+                }
+                position += recordLength;
+
+                final var capturedAt = buffer.getLong(offset + 8);
+                if(capturedAt < since) {
+                    continue;
+                }
+
+                final var index = buffer.getInt(offset + 4);
+                final var captured = buffer.getInt(offset + 20);
+                out.writeLong(capturedAt);
+                out.writeUTF(packetTypes.name(index));
+                out.writeBoolean(packetTypes.outgoing(index));
+                out.writeInt(buffer.getInt(offset + 16));
+                out.writeInt(captured);
+                out.write(copy, offset + HEADER_SIZE, captured);
+                records++;
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Reserve a contiguous record in the ring, evicting the oldest records it overlaps.
+     * Must hold the lock.
+     * @param recordLength the aligned record length
+     * @return the ring offset of the record
+     */
+    private int reserve(int recordLength) {
+        final var capacity = ring.capacity();
+        final var offset = (int) (head % capacity);
+        // a record that doesn't fit before the end skips to the start of the ring.
+        final var skip = capacity - offset < recordLength ? capacity - offset : 0;
+        final var newHead = head + skip + recordLength;
+
+        // evict before writing anything, the headers at the tail have to be intact to walk them.
+        while(newHead - tail > capacity) {
+            // every record was evicted, past the head nothing was written, a record over half the ring gets here.
+            if(tail >= head) {
+                tail = head + skip;
+                break;
+            }
+            final var tailOffset = (int) (tail % capacity);
+            final var tailLength = capacity - tailOffset < HEADER_SIZE ? PAD : ring.getInt(tailOffset);
+            tail += tailLength == PAD ? capacity - tailOffset : tailLength;
+        }
+
+        if(skip >= HEADER_SIZE) {
+            ring.putInt(offset, PAD);
+        }
+        head = newHead;
+        return skip > 0 ? 0 : offset;
+    }
+}
@@ -0,0 +1,204 @@
+package me.tech.packetlogger;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class PacketCounters {
+    private final LongAdder[] amounts;
+    private final LongAdder[] sizes;
+    /** The bytes packets took on the wire, only counted when {@link WireSizeHandler} is installed. */
+    private final LongAdder[] wireSizes;
+    private final LongAccumulator[] maxSizes;
+    /** The packets over a {@link PacketRateLimiter} budget. */
+    private final LongAdder[] violations;
+    /** The {@link SizeHistogram} buckets per slot, created the first time a slot sees a packet. */
+    private final AtomicReferenceArray<LongAdder[]> histograms;
+    /** 1 for every slot counted into since the last snapshot, only flipped once per window. */
+    private final AtomicIntegerArray dirty;
+    private final AtomicInteger dirtyCells = new AtomicInteger();
+
+    public PacketCounters(int slots) {
+        this.amounts = new LongAdder[slots];
+        this.sizes = new LongAdder[slots];
+        this.wireSizes = new LongAdder[slots];
+        this.violations = new LongAdder[slots];
+        this.maxSizes = new LongAccumulator[slots];
+        this.histograms = new AtomicReferenceArray<>(slots);
+        this.dirty = new AtomicIntegerArray(slots);
+
+        for(int i = 0; i < slots; i++) {
+            amounts[i] = new LongAdder();
+            sizes[i] = new LongAdder();
+            wireSizes[i] = new LongAdder();
+            violations[i] = new LongAdder();
+            maxSizes[i] = new LongAccumulator(Math::max, 0);
+        }
+    }
+
+    /**
+     * Count a packet against its slot.
+     * {@link LongAdder} stripes the cells under contention so the Netty event loops
+     * don't fight over a single CAS.
+     * @param index the packet type slot
+     * @param size the packet size in bytes
+     */
+    public void record(int index, int size) {
+        amounts[index].increment();
+        sizes[index].add(size);
+        maxSizes[index].accumulate(size);
+
+        var histogram = histograms.get(index);
+        if(histogram == null) {
+            histogram = createHistogram(index);
+        }
+        histogram[SizeHistogram.bucket(size)].increment();
+
+        markDirty(index);
+    }
+
+    /**
+     * Set after counting, so a slot drained before this still ends up dirty for the next window.
+     */
+    private void markDirty(int index) {
+        if(dirty.get(index) == 0 && dirty.compareAndSet(index, 0, 1)) {
+            dirtyCells.incrementAndGet();
+        }
+    }
+
+    /**
+     * Count the wire size of a packet that was already counted with {@link #record(int, int)}.
+     * @param index the packet type slot
+     * @param wireSize the compressed size in bytes, including the length prefix
+     */
+    public void recordWire(int index, int wireSize) {
+        wireSizes[index].add(wireSize);
+    }
+
+    /**
+     * Count a packet that went over a {@link PacketRateLimiter} budget.
+     * A cancelled packet may never be counted with {@link #record(int, int)}, so the slot is marked dirty here too.
+     * @param index the packet type slot
+     */
+    public void recordViolation(int index) {
+        violations[index].increment();
+        markDirty(index);
+    }
+
+    /**
+     * @return the amount of slots counted into since the last snapshot
+     */
+    public int dirtyCells() {
+        return dirtyCells.get();
+    }
+
+    private LongAdder[] createHistogram(int index) {
+        final var histogram = new LongAdder[SizeHistogram.BUCKETS];
+        for(int i = 0; i < histogram.length; i++) {
+            histogram[i] = new LongAdder();
+        }
+
+        // another event loop may have beaten us to it.
+        if(histograms.compareAndSet(index, null, histogram)) {
+            return histogram;
+        }
+        return histograms.get(index);
+    }
+
+    /**
+     * Drain every slot into a snapshot.
+     * Each cell is swapped to zero atomically, so packets counted while the snapshot is
+     * taken land in the next window instead of being lost, and {@link #record(int, int)}
+     * never has to wait on the flush.
+     * @param collectedAt the epoch millis to stamp the snapshot with
+     * @param connections the connection records drained for the same window
+     * @param heavyHitters the heavy hitters drained for the same window
+     * @return the drained {@link PacketSnapshot}
+     */
+    public PacketSnapshot snapshot(long collectedAt, ConnectionDimensions.Snapshot connections, List<HeavyHitters.Entry> heavyHitters) {
+        final var snapshotAmounts = new long[amounts.length];
+        final var snapshotSizes = new long[sizes.length];
+        final var snapshotWireSizes = new long[wireSizes.length];
+        final var snapshotViolations = new long[violations.length];
+        final var snapshotMaxSizes = new long[maxSizes.length];
+        final var snapshotHistograms = new long[amounts.length][];
+
+        for(int i = 0; i < amounts.length; i++) {
+            if(dirty.getAndSet(i, 0) == 1) {
+                dirtyCells.decrementAndGet();
+            }
+
+            snapshotAmounts[i] = amounts[i].sumThenReset();
+            snapshotSizes[i] = sizes[i].sumThenReset();
+            snapshotWireSizes[i] = wireSizes[i].sumThenReset();
+            snapshotViolations[i] = violations[i].sumThenReset();
+            snapshotMaxSizes[i] = maxSizes[i].getThenReset();
+
+            final var histogram = histograms.get(i);
+            if(histogram != null && snapshotAmounts[i] != 0) {
+                snapshotHistograms[i] = new long[histogram.length];
+                for(int bucket = 0; bucket < histogram.length; bucket++) {
+                    snapshotHistograms[i][bucket] = histogram[bucket].sumThenReset();
+                }
+            }
+        }
+
+        return new PacketSnapshot(
+            collectedAt,
+            snapshotAmounts,
+            snapshotSizes,
+            snapshotWireSizes,
+            snapshotMaxSizes,
+            snapshotHistograms,
+            snapshotViolations,
+            connections,
+            heavyHitters
+        );
+    }
+
+    /**
+     * Read the packets counted into a slot since the last snapshot without draining it.
+     * @param index the packet type slot
+     * @return the amount of packets
+     */
+    public long amount(int index) {
+        return amounts[index].sum();
+    }
+
+    /**
+     * Read the bytes counted into a slot since the last snapshot without draining it.
+     * @param index the packet type slot
+     * @return the total size of packets
+     */
+    public long size(int index) {
+        return sizes[index].sum();
+    }
+
+    /**
+     * Read the wire bytes counted into a slot since the last snapshot without draining it.
+     * @param index the packet type slot
+     * @return the total wire size of packets
+     */
+    public long wireSize(int index) {
+        return wireSizes[index].sum();
+    }
+
+    /**
+     * Read the violations counted into a slot since the last snapshot without draining it.
+     * @param index the packet type slot
+     * @return the amount of packets over budget
+     */
+    public long violations(int index) {
+        return violations[index].sum();
+    }
+
+    /**
+     * @return the amount of slots
+     */
+    public int slots() {
+        return amounts.length;
+    }
+}
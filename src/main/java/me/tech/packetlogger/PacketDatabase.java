@@ -0,0 +1,471 @@
+package me.tech.packetlogger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The SQLite writer.
+ * Holds one connection and its prepared statements for the lifetime of the plugin,
+ * it is not thread safe and must only be used from the writer executor.
+ */
+public final class PacketDatabase implements PacketSink {
+    private static final Logger log = LoggerFactory.getLogger(PacketDatabase.class);
+
+    private final Path dbFile;
+    private final PacketTypeIndex packetTypes;
+    private final String synchronous;
+    private final int pageSize;
+    /** The packet_type id of every packet type slot. */
+    private final int[] packetTypeIds;
+
+    private Connection conn;
+    private PreparedStatement insertPacket;
+    private PreparedStatement insertPlayer;
+    private PreparedStatement selectPlayer;
+    private PreparedStatement insertRenumberedPlayer;
+    private PreparedStatement insertServer;
+    private PreparedStatement selectServer;
+    private PreparedStatement insertRenumberedServer;
+    private PreparedStatement insertConnectionPacket;
+    private PreparedStatement insertHeavyHitter;
+    private final Map<Long, PreparedStatement> upsertRollups = new HashMap<>();
+    /**
+     * The player id in this file of interned ids that were taken by another row, when a player was
+     * evicted and interned again, or when the file is reopened after a restart started the ids over.
+     * Only the players still holding their interned id are kept, and it's cleared when the file is closed.
+     */
+    private final Map<Integer, Integer> renumberedPlayers = new HashMap<>();
+    /** The server id in this file of interned ids that were taken by another server, after a restart. */
+    private final Map<Integer, Integer> renumberedServers = new HashMap<>();
+    private PreparedStatement deleteRawPackets;
+    private PreparedStatement deleteRawConnections;
+    private long bytesWritten;
+
+    public PacketDatabase(
+        final Path dbFile,
+        final PacketTypeIndex packetTypes,
+        final String synchronous,
+        final int pageSize
+    ) {
+        this.dbFile = dbFile;
+        this.packetTypes = packetTypes;
+        this.synchronous = synchronous;
+        this.pageSize = pageSize;
+        this.packetTypeIds = new int[packetTypes.size()];
+    }
+
+    /**
+     * Open the connection, create the schema and prepare the statements.
+     * @throws SQLException if the database couldn't be opened
+     */
+    @Override
+    public void open() throws SQLException {
+        final var dbFolder = dbFile.getParent();
+        if(!Files.exists(dbFolder)) {
+            try {
+                Files.createDirectories(dbFolder);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        conn = DriverManager.getConnection(
+            "jdbc:sqlite:%s".formatted(dbFile.toAbsolutePath())
+        );
+
+        try(final var statement = conn.createStatement()) {
+            // page_size has to be set before WAL is enabled or it's ignored.
+            statement.execute("PRAGMA page_size = %d;".formatted(pageSize));
+            statement.execute("PRAGMA journal_mode = WAL;");
+            statement.execute("PRAGMA synchronous = %s;".formatted(synchronous));
+        }
+
+        PacketSchema.create(conn);
+        log.info("Created batched_packets table in SQLite DB.");
+        loadPacketTypes();
+
+        insertPacket = conn.prepareStatement(
+            "INSERT INTO batched_packets (packet_type_id, amount, size_bytes, size_p50, size_p90, size_p99, size_max, wire_bytes, violations, collected_at) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        insertPlayer = conn.prepareStatement(
+            "INSERT OR IGNORE INTO player (id, uuid, username) VALUES (?, ?, ?)");
+        selectPlayer = conn.prepareStatement(
+            "SELECT id FROM player WHERE uuid = ?");
+        insertRenumberedPlayer = conn.prepareStatement(
+            "INSERT INTO player (uuid, username) VALUES (?, ?) RETURNING id");
+        insertServer = conn.prepareStatement(
+            "INSERT OR IGNORE INTO server (id, name) VALUES (?, ?)");
+        selectServer = conn.prepareStatement(
+            "SELECT id FROM server WHERE name = ?");
+        insertRenumberedServer = conn.prepareStatement(
+            "INSERT INTO server (name) VALUES (?) RETURNING id");
+        insertConnectionPacket = conn.prepareStatement(
+            "INSERT INTO connection_packets (packet_type_id, player_id, server_id, amount, size_bytes, collected_at) VALUES (?, ?, ?, ?, ?, ?)");
+        insertHeavyHitter = conn.prepareStatement(
+            "INSERT INTO heavy_hitters (packet_type_id, uuid, username, rank, amount, collected_at) VALUES (?, ?, ?, ?, ?, ?)");
+        for(final var rollup : PacketSchema.ROLLUPS.entrySet()) {
+            upsertRollups.put(rollup.getValue(), conn.prepareStatement(PacketSchema.rollupUpsert(rollup.getKey())));
+        }
+        deleteRawPackets = conn.prepareStatement(
+            "DELETE FROM batched_packets WHERE collected_at < ?");
+        deleteRawConnections = conn.prepareStatement(
+            "DELETE FROM connection_packets WHERE collected_at < ?");
+    }
+
+    /**
+     * Write a drained snapshot.
+     * Every row of the snapshot goes into a single batch and a single transaction,
+     * so a flush costs one commit no matter how many packet types were seen.
+     * The rollup tables are kept up to date in that same transaction.
+     * @param snapshot the {@link PacketSnapshot} to write
+     */
+    @Override
+    public void write(PacketSnapshot snapshot) throws SQLException {
+        final var writtenBefore = ThreadIo.writtenBytes();
+        conn.setAutoCommit(false);
+
+        try {
+            for(int index = 0; index < snapshot.amounts().length; index++) {
+                final var amount = snapshot.amounts()[index];
+                // cancelled packets over budget may never be counted, their violations still get a row.
+                if(amount == 0 && snapshot.violations()[index] == 0) {
+                    continue;
+                }
+                final var size = snapshot.sizes()[index];
+                final var wireSize = snapshot.wireSizes()[index];
+
+                insertPacket.setInt(1, packetTypeIds[index]);
+                insertPacket.setLong(2, amount);
+                insertPacket.setLong(3, size);
+                insertPacket.setLong(4, snapshot.sizePercentile(index, 0.5));
+                insertPacket.setLong(5, snapshot.sizePercentile(index, 0.9));
+                insertPacket.setLong(6, snapshot.sizePercentile(index, 0.99));
+                insertPacket.setLong(7, snapshot.maxSizes()[index]);
+                insertPacket.setLong(8, wireSize);
+                insertPacket.setLong(9, snapshot.violations()[index]);
+                insertPacket.setLong(10, snapshot.collectedAt());
+                insertPacket.addBatch();
+
+                for(final var rollup : upsertRollups.entrySet()) {
+                    final var statement = rollup.getValue();
+                    statement.setLong(1, snapshot.collectedAt() / rollup.getKey() * rollup.getKey());
+                    statement.setInt(2, packetTypeIds[index]);
+                    statement.setLong(3, amount);
+                    statement.setLong(4, size);
+                    statement.setLong(5, snapshot.maxSizes()[index]);
+                    statement.setLong(6, wireSize);
+                    statement.setLong(7, snapshot.violations()[index]);
+                    statement.addBatch();
+                }
+            }
+
+            insertPacket.executeBatch();
+            for(final var statement : upsertRollups.values()) {
+                statement.executeBatch();
+            }
+            final var players = new HashMap<Integer, Integer>();
+            final var servers = new HashMap<Integer, Integer>();
+            writeConnections(snapshot, players, servers);
+            writeHeavyHitters(snapshot);
+            conn.commit();
+            // an evicted id may be interned again, and an id in this snapshot now belongs to its player or server.
+            final var connections = snapshot.connections();
+            for(final var id : connections.evictedPlayers()) {
+                renumberedPlayers.remove(id);
+            }
+            for(final var player : connections.players()) {
+                renumberedPlayers.remove(player.id());
+            }
+            for(final var server : connections.servers()) {
+                renumberedServers.remove(server.id());
+            }
+            renumberedPlayers.putAll(players);
+            renumberedServers.putAll(servers);
+        } catch(SQLException ex) {
+            conn.rollback();
+            clearBatches();
+            throw ex;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+
+        final var writtenAfter = ThreadIo.writtenBytes();
+        if(writtenBefore >= 0 && writtenAfter >= 0) {
+            bytesWritten += writtenAfter - writtenBefore;
+        }
+    }
+
+    @Override
+    public List<Path> activeFiles() {
+        return List.of(dbFile);
+    }
+
+    /**
+     * The bytes SQLite wrote into the database and WAL files.
+     * Measured from the I/O counters of the writer thread, as the driver doesn't expose them.
+     * @return the bytes written, 0 where the thread I/O counters aren't available
+     */
+    @Override
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Drop whatever a failed write left in the statement batches.
+     * @throws SQLException if a batch couldn't be cleared
+     */
+    private void clearBatches() throws SQLException {
+        insertPacket.clearBatch();
+        insertConnectionPacket.clearBatch();
+        insertHeavyHitter.clearBatch();
+        for(final var statement : upsertRollups.values()) {
+            statement.clearBatch();
+        }
+    }
+
+    /**
+     * Drop raw `batched_packets` rows that are older than the raw retention.
+     * They're already summed into the rollup tables, so only the 5 second resolution is lost.
+     * Per connection rows have no rollup, their history is lost if they're dropped too.
+     * @param before the epoch millis to delete raw rows before
+     * @param connections whether the per connection rows are deleted too
+     */
+    @Override
+    public void purgeRaw(long before, boolean connections) {
+        try {
+            deleteRawPackets.setLong(1, before);
+            var deleted = deleteRawPackets.executeUpdate();
+            if(connections) {
+                deleteRawConnections.setLong(1, before);
+                deleted += deleteRawConnections.executeUpdate();
+            }
+            if(deleted > 0) {
+                log.debug("Downsampled {} raw packet rows", deleted);
+            }
+        } catch(SQLException ex) {
+            log.error("Unable to downsample the raw packet rows", ex);
+        }
+    }
+
+    /**
+     * @return the database file
+     */
+    public Path file() {
+        return dbFile;
+    }
+
+    /**
+     * @return the size of the database including what's still in the WAL
+     * @throws SQLException if the size couldn't be read
+     */
+    public long sizeBytes() throws SQLException {
+        try(final var statement = conn.createStatement();
+            final var rs = statement.executeQuery("PRAGMA page_count;")) {
+            return rs.next() ? rs.getLong(1) * pageSize : 0;
+        }
+    }
+
+    /**
+     * Optimize a database that won't be written anymore, then close it.
+     * VACUUM drops the free pages left by downsampling and ANALYZE gives readers the statistics.
+     */
+    public void seal() {
+        try(final var statement = conn.createStatement()) {
+            statement.execute("ANALYZE;");
+            statement.execute("VACUUM;");
+        } catch(SQLException ex) {
+            log.error("Unable to optimize {}", dbFile.getFileName(), ex);
+        }
+        close();
+    }
+
+    /**
+     * Delete the database file and its WAL, it must be closed.
+     */
+    public void delete() {
+        try {
+            Files.deleteIfExists(dbFile);
+            Files.deleteIfExists(dbFile.resolveSibling(dbFile.getFileName() + "-wal"));
+            Files.deleteIfExists(dbFile.resolveSibling(dbFile.getFileName() + "-shm"));
+        } catch(IOException ex) {
+            log.error("Unable to delete {}", dbFile.getFileName(), ex);
+        }
+    }
+
+    /**
+     * Checkpoint the WAL into the database file, then close the statements and the connection.
+     */
+    @Override
+    public void close() {
+        // the ids are per file, a rotated file is only sealed and never written again.
+        renumberedPlayers.clear();
+        renumberedServers.clear();
+        if(conn == null) {
+            return;
+        }
+
+        // fold the WAL back so the database file is complete on its own once the proxy is down.
+        try(final var statement = conn.createStatement()) {
+            statement.execute("PRAGMA wal_checkpoint(TRUNCATE);");
+        } catch(SQLException ex) {
+            log.error("Unable to checkpoint the SQLite WAL", ex);
+        }
+
+        try {
+            // closing the connection closes its statements too.
+            conn.close();
+        } catch(SQLException ex) {
+            log.error("Unable to close the packet database", ex);
+        }
+    }
+
+    /**
+     * Load the `packet_type` dictionary.
+     * Every known packet type is inserted up front in one transaction, the UNIQUE constraint
+     * keeps this idempotent across restarts, and the ids are then read back once so writes
+     * only ever reference an integer.
+     * @throws SQLException if the dictionary couldn't be loaded
+     */
+    private void loadPacketTypes() throws SQLException {
+        conn.setAutoCommit(false);
+        try(final var statement = conn.prepareStatement("INSERT OR IGNORE INTO packet_type (name, outgoing) VALUES (?, ?)")) {
+            for(int index = 0; index < packetTypes.size(); index++) {
+                statement.setString(1, packetTypes.name(index));
+                statement.setBoolean(2, packetTypes.outgoing(index));
+                statement.addBatch();
+            }
+            statement.executeBatch();
+            conn.commit();
+        } finally {
+            conn.setAutoCommit(true);
+        }
+
+        final var ids = new HashMap<String, Integer>();
+        try(final var statement = conn.createStatement();
+            final var rs = statement.executeQuery("SELECT id, name, outgoing FROM packet_type")) {
+            while(rs.next()) {
+                ids.put(packetTypeKey(rs.getString("name"), rs.getBoolean("outgoing")), rs.getInt("id"));
+            }
+        }
+
+        for(int index = 0; index < packetTypes.size(); index++) {
+            packetTypeIds[index] = ids.get(packetTypeKey(packetTypes.name(index), packetTypes.outgoing(index)));
+        }
+        log.info("Loaded {} packet types from SQLite DB.", ids.size());
+    }
+
+    private static String packetTypeKey(String name, boolean outgoing) {
+        return (outgoing ? "out:" : "in:") + name;
+    }
+
+    /**
+     * Write the per player and per server records of a snapshot.
+     * @param snapshot the {@link PacketSnapshot} being written
+     * @param players filled with the players of this snapshot that got another id in this file
+     * @param servers filled with the servers of this snapshot that got another id in this file
+     * @throws SQLException if an insert failed
+     */
+    private void writeConnections(PacketSnapshot snapshot, Map<Integer, Integer> players, Map<Integer, Integer> servers) throws SQLException {
+        final var connections = snapshot.connections();
+
+        for(final var player : connections.players()) {
+            insertPlayer.setInt(1, player.id());
+            insertPlayer.setString(2, player.uuid().toString());
+            insertPlayer.setString(3, player.username());
+            if(insertPlayer.executeUpdate() == 0) {
+                selectPlayer.setString(1, player.uuid().toString());
+                insertRenumberedPlayer.setString(1, player.uuid().toString());
+                insertRenumberedPlayer.setString(2, player.username());
+                final var fileId = fileId(selectPlayer, insertRenumberedPlayer);
+                if(fileId != player.id()) {
+                    players.put(player.id(), fileId);
+                }
+            }
+        }
+
+        for(final var server : connections.servers()) {
+            insertServer.setInt(1, server.id());
+            insertServer.setString(2, server.name());
+            if(insertServer.executeUpdate() == 0) {
+                selectServer.setString(1, server.name());
+                insertRenumberedServer.setString(1, server.name());
+                final var fileId = fileId(selectServer, insertRenumberedServer);
+                if(fileId != server.id()) {
+                    servers.put(server.id(), fileId);
+                }
+            }
+        }
+
+        for(final var record : connections.records()) {
+            insertConnectionPacket.setInt(1, packetTypeIds[record.index()]);
+            final var playerId = record.playerId();
+            insertConnectionPacket.setInt(2, players.getOrDefault(playerId, renumberedPlayers.getOrDefault(playerId, playerId)));
+            if(record.serverId() == ConnectionDimensions.NO_SERVER) {
+                insertConnectionPacket.setNull(3, Types.INTEGER);
+            } else {
+                final var serverId = record.serverId();
+                insertConnectionPacket.setInt(3, servers.getOrDefault(serverId, renumberedServers.getOrDefault(serverId, serverId)));
+            }
+            insertConnectionPacket.setLong(4, record.amount());
+            insertConnectionPacket.setLong(5, record.size());
+            insertConnectionPacket.setLong(6, snapshot.collectedAt());
+            insertConnectionPacket.addBatch();
+        }
+        insertConnectionPacket.executeBatch();
+    }
+
+    /**
+     * Find the id a player or server already has in this file by its uuid or name, or give it
+     * a new one if its interned id is taken by another row.
+     * @param select the lookup by uuid or name, with its parameter set
+     * @param insert the insert without an id returning the new id, with its parameters set
+     * @return the id in this file
+     * @throws SQLException if a query failed
+     */
+    private static int fileId(PreparedStatement select, PreparedStatement insert) throws SQLException {
+        try(final var rs = select.executeQuery()) {
+            if(rs.next()) {
+                return rs.getInt(1);
+            }
+        }
+
+        try(final var rs = insert.executeQuery()) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    /**
+     * Write the heavy hitters of a snapshot.
+     * @param snapshot the {@link PacketSnapshot} being written
+     * @throws SQLException if an insert failed
+     */
+    private void writeHeavyHitters(PacketSnapshot snapshot) throws SQLException {
+        if(snapshot.heavyHitters().isEmpty()) {
+            return;
+        }
+
+        for(final var entry : snapshot.heavyHitters()) {
+            insertHeavyHitter.setInt(1, packetTypeIds[entry.index()]);
+            insertHeavyHitter.setString(2, entry.uuid().toString());
+            insertHeavyHitter.setString(3, entry.username());
+            insertHeavyHitter.setInt(4, entry.rank());
+            insertHeavyHitter.setLong(5, entry.amount());
+            insertHeavyHitter.setLong(6, snapshot.collectedAt());
+            insertHeavyHitter.addBatch();
+        }
+        insertHeavyHitter.executeBatch();
+    }
+}
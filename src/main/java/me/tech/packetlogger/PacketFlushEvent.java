@@ -0,0 +1,31 @@
+package me.tech.packetlogger;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for a window written by the sink, its duration is the time spent writing.
+ */
+@Name("me.tech.packetlogger.PacketFlush")
+@Label("Packet Flush")
+@Category("PacketLogger")
+@Description("A packet window written to storage")
+@StackTrace(false)
+public final class PacketFlushEvent extends jdk.jfr.Event {
+    @Label("Rows")
+    public int rows;
+
+    @Label("Bytes Written")
+    @DataAmount
+    public long bytesWritten;
+
+    @Label("Queue Depth")
+    public int queueDepth;
+
+    @Label("Failed")
+    public boolean failed;
+}
@@ -0,0 +1,297 @@
+package me.tech.packetlogger;
+
+import com.velocitypowered.api.command.CommandSource;
+import com.velocitypowered.api.command.SimpleCommand;
+import net.kyori.adventure.text.Component;
+import net.kyori.adventure.text.format.NamedTextColor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The `/packetlogger` command.
+ */
+public final class PacketLoggerCommand implements SimpleCommand {
+    private static final Logger log = LoggerFactory.getLogger(PacketLoggerCommand.class);
+
+    private static final String PERMISSION = "packetlogger.admin";
+    private static final int TOP_ROWS = 10;
+    private static final List<String> SUBCOMMANDS = List.of("dump", "export", "stats", "top");
+
+    private final PacketLoggerPlugin plugin;
+    private final BatchedPacketsService service;
+
+    public PacketLoggerCommand(
+        final PacketLoggerPlugin plugin,
+        final BatchedPacketsService service
+    ) {
+        this.plugin = plugin;
+        this.service = service;
+    }
+
+    @Override
+    public void execute(Invocation invocation) {
+        final var source = invocation.source();
+        final var args = invocation.arguments();
+
+        if(args.length == 0) {
+            source.sendMessage(Component.text("Usage: /packetlogger <%s>".formatted(String.join("|", SUBCOMMANDS)), NamedTextColor.RED));
+            return;
+        }
+
+        switch(args[0].toLowerCase()) {
+            case "dump" -> dump(invocation);
+            case "export" -> export(invocation);
+            case "stats" -> stats(invocation);
+            case "top" -> top(invocation);
+            default -> source.sendMessage(Component.text("Unknown subcommand %s".formatted(args[0]), NamedTextColor.RED));
+        }
+    }
+
+    @Override
+    public List<String> suggest(Invocation invocation) {
+        final var args = invocation.arguments();
+        if(args.length <= 1) {
+            final var prefix = args.length == 0 ? "" : args[0].toLowerCase();
+            return SUBCOMMANDS.stream().filter((subcommand) -> subcommand.startsWith(prefix)).toList();
+        }
+        return List.of();
+    }
+
+    @Override
+    public boolean hasPermission(Invocation invocation) {
+        return invocation.source().hasPermission(PERMISSION);
+    }
+
+    /**
+     * `/packetlogger top [incoming|outgoing|all] [window] [count|bytes]`, show the busiest packet types
+     * of the last minutes. Recent windows are answered from memory, longer ones from the SQLite rollups.
+     * @param invocation the invocation
+     */
+    private void top(Invocation invocation) {
+        final var source = invocation.source();
+        final var args = invocation.arguments();
+
+        Boolean outgoing = null;
+        var bySize = false;
+        var windowMinutes = 5L;
+        for(int i = 1; i < args.length; i++) {
+            switch(args[i].toLowerCase()) {
+                case "incoming" -> outgoing = false;
+                case "outgoing" -> outgoing = true;
+                case "all" -> outgoing = null;
+                case "count" -> bySize = false;
+                case "bytes" -> bySize = true;
+                default -> {
+                    windowMinutes = parseMinutes(args[i]);
+                    if(windowMinutes <= 0) {
+                        source.sendMessage(Component.text("Usage: /packetlogger top [incoming|outgoing|all] [minutes, e.g. 15m or 2h] [count|bytes]", NamedTextColor.RED));
+                        return;
+                    }
+                }
+            }
+        }
+
+        final var since = Instant.now().toEpochMilli() - TimeUnit.MINUTES.toMillis(windowMinutes);
+        final var title = "Top %s packets by %s over %d minutes".formatted(
+            outgoing == null ? "all" : outgoing ? "outgoing" : "incoming", bySize ? "bytes" : "count", windowMinutes);
+        final var packetTypes = service.packetTypes();
+
+        final var amounts = new long[packetTypes.size()];
+        final var sizes = new long[packetTypes.size()];
+        if(service.ring().sum(since, amounts, sizes)) {
+            sendTop(source, title, PacketQuery.top(PacketQuery.fromTotals(packetTypes, amounts, sizes), outgoing, bySize, TOP_ROWS));
+            return;
+        }
+
+        if(!plugin.config.getString("storage", "sqlite").equals("sqlite")) {
+            source.sendMessage(Component.text("Only the last %d minutes are kept in memory.".formatted(
+                plugin.config.getInt("top-memory-minutes", 15)), NamedTextColor.RED));
+            return;
+        }
+
+        final var filterOutgoing = outgoing;
+        final var filterBySize = bySize;
+        plugin.server.getScheduler().buildTask(plugin, () -> {
+            try {
+                final var rows = PacketQuery.fromFiles(plugin.dataDirectory, since);
+                sendTop(source, title, PacketQuery.top(rows, filterOutgoing, filterBySize, TOP_ROWS));
+            } catch(Exception ex) {
+                log.error("Unable to query packet logs", ex);
+                source.sendMessage(Component.text("Unable to query the packet logs, check the console.", NamedTextColor.RED));
+            }
+        }).schedule();
+    }
+
+    private static void sendTop(CommandSource source, String title, List<PacketQuery.Row> rows) {
+        source.sendMessage(Component.text(title, NamedTextColor.GOLD));
+        if(rows.isEmpty()) {
+            source.sendMessage(Component.text("No packets were logged.", NamedTextColor.GRAY));
+            return;
+        }
+
+        for(int i = 0; i < rows.size(); i++) {
+            final var row = rows.get(i);
+            source.sendMessage(Component.text("%d. %s (%s) %,d packets, %.2f MB".formatted(
+                i + 1, row.name(), row.outgoing() ? "out" : "in", row.amount(), row.size() / 1e6), NamedTextColor.GRAY));
+        }
+    }
+
+    /**
+     * @param window minutes, optionally suffixed with m or h
+     * @return the window in minutes, or -1 if it isn't valid
+     */
+    private static long parseMinutes(String window) {
+        final var lower = window.toLowerCase();
+        final var hours = lower.endsWith("h");
+        final var digits = hours || lower.endsWith("m") ? lower.substring(0, lower.length() - 1) : lower;
+        try {
+            final var value = Long.parseLong(digits);
+            return hours ? TimeUnit.HOURS.toMinutes(value) : value;
+        } catch(NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * `/packetlogger stats`, show the overhead of the logger itself.
+     * @param invocation the invocation
+     */
+    private void stats(Invocation invocation) {
+        final var source = invocation.source();
+        final var stats = service.stats();
+
+        final var flushes = stats.flushes();
+        source.sendMessage(Component.text("Writer: %d flushes, avg %.2f ms, last %.2f ms, %d windows queued, %.1f s behind".formatted(
+            flushes,
+            flushes == 0 ? 0.0 : stats.flushNanos() / (double) flushes / 1_000_000,
+            stats.lastFlushNanos() / 1_000_000.0,
+            service.queueDepth(),
+            service.writerLagMillis() / 1000.0
+        ), NamedTextColor.GRAY));
+        source.sendMessage(Component.text("Scheduler: %d flushes skipped, %d deferred, %d dirty rows".formatted(
+            stats.skippedFlushes(),
+            stats.deferredFlushes(),
+            service.dirtyRows()
+        ), NamedTextColor.GRAY));
+        source.sendMessage(Component.text("Storage: %d rows, %d KiB written, %d rows dropped".formatted(
+            stats.rowsWritten(),
+            stats.bytesWritten() / 1024,
+            stats.droppedRecords()
+        ), NamedTextColor.GRAY));
+        if(service.rateLimiter() != null) {
+            long violations = 0;
+            for(int i = 0; i < service.packetTypes().size(); i++) {
+                violations += stats.totalViolations(i) + service.counters().violations(i);
+            }
+            source.sendMessage(Component.text("Rate limits: %d packets over budget".formatted(violations), NamedTextColor.GRAY));
+        }
+        for(final var exporter : service.exporters()) {
+            source.sendMessage(Component.text("Exporter %s: %d windows written, %d queued, %d dropped".formatted(
+                exporter.name(),
+                exporter.writtenWindows(),
+                exporter.queueDepth(),
+                exporter.droppedWindows()
+            ), NamedTextColor.GRAY));
+        }
+
+        final var sampledAdds = stats.sampledAdds();
+        if(service.addSampleRate() == 0 || sampledAdds == 0) {
+            source.sendMessage(Component.text("Listener: not sampled, set instrumentation-sample-rate in the config.", NamedTextColor.GRAY));
+            return;
+        }
+
+        final var averageNanos = stats.addNanos() / (double) sampledAdds;
+        final var packetRate = stats.packetRate();
+        // nanos of event loop time per second, over a second of one core.
+        final var corePercent = averageNanos * packetRate / 1_000_000_000 * 100;
+        source.sendMessage(Component.text("Listener: %d sampled, avg %.0f ns, max %d ns, %.0f packets/s, ~%.3f%% of a core".formatted(
+            sampledAdds,
+            averageNanos,
+            stats.maxAddNanos(),
+            packetRate,
+            corePercent
+        ), NamedTextColor.GRAY));
+    }
+
+    /**
+     * `/packetlogger export [days]`, merge the packet logs of the last days, archived or not,
+     * into a single SQLite file for `graph.py`. Runs in the background.
+     * @param invocation the invocation
+     */
+    private void export(Invocation invocation) {
+        final var source = invocation.source();
+
+        final long days;
+        try {
+            days = invocation.arguments().length > 1 ? Long.parseLong(invocation.arguments()[1]) : 1;
+        } catch(NumberFormatException ex) {
+            source.sendMessage(Component.text("Usage: /packetlogger export [days]", NamedTextColor.RED));
+            return;
+        }
+
+        final var output = plugin.dataDirectory.resolve(Constants.EXPORTS_FOLDER_NAME).resolve("export_%s.sqlite".formatted(Instant.now().toEpochMilli()));
+        source.sendMessage(Component.text("Exporting the last %d days to %s...".formatted(days, output.getFileName()), NamedTextColor.GRAY));
+
+        plugin.server.getScheduler().buildTask(plugin, () -> {
+            try {
+                final var from = LocalDate.now().minusDays(Math.max(days, 1) - 1);
+                final var files = new ArrayList<Path>();
+                for(final var folder : RetentionService.dateFolders(plugin.dataDirectory).entrySet()) {
+                    if(!folder.getValue().isBefore(from)) {
+                        files.addAll(PacketArchiveExporter.findFiles(folder.getKey()));
+                    }
+                }
+
+                Files.createDirectories(output.getParent());
+                PacketArchiveExporter.export(output, files);
+                source.sendMessage(Component.text("Exported %d files to %s".formatted(files.size(), output.getFileName()), NamedTextColor.GREEN));
+            } catch(Exception ex) {
+                log.error("Unable to export packet logs", ex);
+                source.sendMessage(Component.text("Unable to export the packet logs, check the console.", NamedTextColor.RED));
+            }
+        }).schedule();
+    }
+
+    /**
+     * `/packetlogger dump [seconds]`, write the last seconds of the packet capture to a file.
+     * @param invocation the invocation
+     */
+    private void dump(Invocation invocation) {
+        final var source = invocation.source();
+        final var capture = service.capture();
+        if(capture == null) {
+            source.sendMessage(Component.text("Packet capture is disabled, enable capture-enabled in the config.", NamedTextColor.RED));
+            return;
+        }
+
+        final long seconds;
+        try {
+            seconds = invocation.arguments().length > 1 ? Long.parseLong(invocation.arguments()[1]) : 60;
+        } catch(NumberFormatException ex) {
+            source.sendMessage(Component.text("Usage: /packetlogger dump [seconds]", NamedTextColor.RED));
+            return;
+        }
+
+        final var now = Instant.now().toEpochMilli();
+        final var file = plugin.dataDirectory.resolve(Constants.CAPTURES_FOLDER_NAME).resolve("capture_%s.bin".formatted(now));
+        // copying the ring and writing it out can take a while for a large capture buffer.
+        plugin.server.getScheduler().buildTask(plugin, () -> {
+            try {
+                final var records = capture.dump(file, now - TimeUnit.SECONDS.toMillis(seconds));
+                source.sendMessage(Component.text("Dumped %d packets to %s".formatted(records, file.getFileName()), NamedTextColor.GREEN));
+            } catch(IOException ex) {
+                log.error("Unable to dump packet capture", ex);
+                source.sendMessage(Component.text("Unable to dump the packet capture, check the console.", NamedTextColor.RED));
+            }
+        }).schedule();
+    }
+}
@@ -18,10 +18,7 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeUnit;
 
 @Plugin(
         id = "packetlogger-velocity",
@@ -39,10 +36,13 @@ public class PacketLoggerPlugin {
     private static Logger log = LoggerFactory.getLogger(PacketLoggerPlugin.class);
 
     private static final int SERVICE_ID = 24008;
-    private static final DateTimeFormatter FOLDER_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
 
     private BatchedPacketsService batchedPacketsService;
     private VelocityMetrics metrics;
+    private MetricsServer metricsServer;
+    private RetentionService retentionService;
+    private PacketListenerCommon packetListener;
+    private PacketListenerCommon rateLimitListener;
 
     public ProxyServer server;
     private Logger logger;
@@ -71,12 +71,43 @@ public class PacketLoggerPlugin {
         } catch (Exception e) { throw new RuntimeException(e); }
 
         //this.metrics = this.metricsFactory.make(this, SERVICE_ID);
-        purge();
 
         this.batchedPacketsService = new BatchedPacketsService(this);
         batchedPacketsService.startPublish();
 
-        PacketEvents.getAPI().getEventManager().registerListener(new PacketListener() {
+        final var rawPurgeConnections = config.getBoolean("raw-purge-connections", false);
+        this.retentionService = new RetentionService(
+            dataDirectory,
+            config.getInt("purge-days", 14),
+            TimeUnit.HOURS.toMillis(config.getInt("raw-retention-hours", 0)),
+            rawPurgeConnections,
+            config.getLong("retention-max-disk-mb", 0L) * 1024 * 1024,
+            createArchiver(),
+            batchedPacketsService::activeFiles,
+            (before) -> batchedPacketsService.purgeRaw(before, rawPurgeConnections)
+        );
+        retentionService.start(config.getInt("retention-interval-minutes", 60));
+
+        final var commandManager = server.getCommandManager();
+        commandManager.register(
+            commandManager.metaBuilder("packetlogger").plugin(this).build(),
+            new PacketLoggerCommand(this, batchedPacketsService)
+        );
+
+        if(config.getBoolean("metrics-enabled", false)) {
+            try {
+                metricsServer = new MetricsServer(
+                    batchedPacketsService,
+                    config.getString("metrics-host", "127.0.0.1"),
+                    config.getInt("metrics-port", 9464)
+                );
+                metricsServer.start();
+            } catch(IOException ex) {
+                log.error("Unable to start the metrics endpoint", ex);
+            }
+        }
+
+        packetListener = PacketEvents.getAPI().getEventManager().registerListener(new PacketListener() {
             @Override
             public void onPacketSend(PacketSendEvent event) {
                 batchedPacketsService.add(event);
@@ -86,64 +117,60 @@ public class PacketLoggerPlugin {
             public void onPacketReceive(PacketReceiveEvent event) {
                 batchedPacketsService.add(event);
             }
-        }, PacketListenerPriority.MONITOR);
-    }
 
-    @Subscribe
-    public void onProxyShutdown(ProxyShutdownEvent event) {
-        server.getScheduler().tasksByPlugin(this).forEach(ScheduledTask::cancel);
-        //metrics.shutdown();
+            @Override
+            public void onUserConnect(UserConnectEvent event) {
+                batchedPacketsService.connect(event.getUser().getChannel());
+            }
+        }, PacketListenerPriority.MONITOR);
 
-        batchedPacketsService.flush();
+        final var rateLimiter = batchedPacketsService.rateLimiter();
+        if(rateLimiter != null) {
+            // LOWEST runs first, so a packet over budget is cancelled before anything else handles it.
+            rateLimitListener = PacketEvents.getAPI().getEventManager().registerListener(new PacketListener() {
+                @Override
+                public void onPacketReceive(PacketReceiveEvent event) {
+                    rateLimiter.check(event);
+                }
+
+                @Override
+                public void onUserConnect(UserConnectEvent event) {
+                    rateLimiter.connect(event.getUser().getChannel());
+                }
+            }, PacketListenerPriority.LOWEST);
+        }
     }
 
     /**
-     * Purge old packet logs.
+     * Create the archiver from the `archive-*` config.
+     * @return the {@link PacketArchiver}, or null if archiving is disabled
      */
-    private void purge() {
-        final var purgeDays = config.getInt("purge-days", 14);
-        log.info("Packet Logs will be purged after {} days.", purgeDays);
-
-        final var now = LocalDateTime.now();
-        final var files = dataDirectory.toFile().listFiles();
-        if(files == null) {
-            log.warn("No files were found in data folder to purge.");
-            return;
+    private PacketArchiver createArchiver() {
+        final var archiveAfterHours = config.getInt("archive-after-hours", 0);
+        if(archiveAfterHours <= 0) {
+            return null;
         }
 
-        for(final var folder : files) {
-            if(!folder.isDirectory()) {
-                continue;
-            }
-
-            final var date = LocalDate.parse(folder.getName(), FOLDER_FORMAT);
-            final var daysBetween = ChronoUnit.DAYS.between(date, now);
-
-            if(daysBetween < purgeDays) {
-                continue;
-            }
-
-            server.getScheduler().buildTask(this, () -> {
-                deleteRecursively(folder);
-                folder.delete();
-            }).schedule();
-
-            log.info("Purged {}", folder.getName());
-        }
+        return new PacketArchiver(
+            TimeUnit.HOURS.toMillis(archiveAfterHours),
+            config.getLong("archive-max-mb-per-second", 16L) * 1024 * 1024
+        );
     }
 
-    /**
-     * Recursively delete a folder
-     * @param file the parent
-     */
-    private void deleteRecursively(final File file) {
-        if(file.isDirectory()) {
-            for(final var child : file.listFiles()) {
-                deleteRecursively(child);
-            }
+    @Subscribe
+    public void onProxyShutdown(ProxyShutdownEvent event) {
+        // stop accepting packets before the last window is drained.
+        PacketEvents.getAPI().getEventManager().unregisterListener(packetListener);
+        if(rateLimitListener != null) {
+            PacketEvents.getAPI().getEventManager().unregisterListener(rateLimitListener);
         }
-        if(!file.delete()) {
-            log.error("Unable to delete {}", file.getName());
+        server.getScheduler().tasksByPlugin(this).forEach(ScheduledTask::cancel);
+        //metrics.shutdown();
+        if(metricsServer != null) {
+            metricsServer.stop();
         }
+        retentionService.stop();
+
+        batchedPacketsService.shutdown(TimeUnit.SECONDS.toMillis(config.getInt("shutdown-timeout-seconds", 10)));
     }
 }
@@ -0,0 +1,166 @@
+package me.tech.packetlogger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers "which packet types were the busiest" over a recent window, either from
+ * in-memory totals or from the per minute rollups of the SQLite files covering the window.
+ */
+public final class PacketQuery {
+    private static final String FILE_PREFIX = "packets_";
+    private static final String FILE_SUFFIX = ".sqlite";
+    private static final String ARCHIVE_SUFFIX = FILE_SUFFIX + PacketArchiver.ARCHIVE_SUFFIX;
+
+    private PacketQuery() {}
+
+    /**
+     * The totals of one packet type.
+     * @param name the packet name
+     * @param outgoing whether the packet is sent to the client
+     * @param amount the amount of packets
+     * @param size the total size of packets
+     */
+    public record Row(String name, boolean outgoing, long amount, long size) {}
+
+    /**
+     * Turn per slot totals into rows, skipping slots without packets.
+     * Slots sharing a name and direction across protocol states are summed into one row,
+     * like they share a `packet_type` id in SQLite.
+     * @param packetTypes the slot index
+     * @param amounts the amount of packets per slot
+     * @param sizes the total size of packets per slot
+     * @return the rows
+     */
+    public static List<Row> fromTotals(PacketTypeIndex packetTypes, long[] amounts, long[] sizes) {
+        final var rows = new LinkedHashMap<String, Row>();
+        for(int i = 0; i < amounts.length; i++) {
+            if(amounts[i] != 0) {
+                final var row = new Row(packetTypes.name(i), packetTypes.outgoing(i), amounts[i], sizes[i]);
+                rows.merge((row.outgoing() ? "out:" : "in:") + row.name(), row, (a, b) ->
+                    new Row(a.name(), a.outgoing(), a.amount() + b.amount(), a.size() + b.size()));
+            }
+        }
+        return new ArrayList<>(rows.values());
+    }
+
+    /**
+     * Sum the per minute rollups of every SQLite file that can hold minutes since a point in time.
+     * Files are named after the time they start at, so every file starting after since is read,
+     * plus the last one starting before it. Archived files are decompressed next to the archive while they're read.
+     * @param dataFolder the plugin data folder
+     * @param since the epoch millis to sum from
+     * @return the rows
+     * @throws IOException if the date folders couldn't be listed or an archive couldn't be decompressed
+     * @throws SQLException if a file couldn't be read
+     */
+    public static List<Row> fromFiles(Path dataFolder, long since) throws IOException, SQLException {
+        final var files = new ArrayList<Map.Entry<Long, Path>>();
+        for(final var folder : RetentionService.dateFolders(dataFolder).keySet()) {
+            try(final var stream = Files.newDirectoryStream(folder, FILE_PREFIX + "*" + FILE_SUFFIX + "{,%s}".formatted(PacketArchiver.ARCHIVE_SUFFIX))) {
+                for(final var file : stream) {
+                    // the archive of a file that's still there would be counted twice.
+                    if(PacketArchiver.isSuperseded(file)) {
+                        continue;
+                    }
+                    final var name = file.getFileName().toString();
+                    final var suffix = name.endsWith(ARCHIVE_SUFFIX) ? ARCHIVE_SUFFIX : FILE_SUFFIX;
+                    try {
+                        files.add(Map.entry(Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - suffix.length())), file));
+                    } catch(NumberFormatException ex) {
+                        // not ours.
+                    }
+                }
+            }
+        }
+        files.sort(Map.Entry.comparingByKey());
+
+        int first = 0;
+        for(int i = 0; i < files.size(); i++) {
+            if(files.get(i).getKey() <= since) {
+                first = i;
+            }
+        }
+
+        final var totals = new HashMap<String, long[]>();
+        for(final var entry : files.subList(first, files.size())) {
+            final var file = entry.getValue();
+            final var archived = file.getFileName().toString().endsWith(ARCHIVE_SUFFIX);
+            final var source = archived ? PacketArchiver.extract(file, file.getParent()) : file;
+            try {
+                sumFile(source, since, totals);
+            } finally {
+                if(archived) {
+                    Files.deleteIfExists(source);
+                }
+            }
+        }
+
+        final var rows = new ArrayList<Row>(totals.size());
+        for(final var entry : totals.entrySet()) {
+            final var outgoing = entry.getKey().startsWith("out:");
+            rows.add(new Row(entry.getKey().substring(outgoing ? 4 : 3), outgoing, entry.getValue()[0], entry.getValue()[1]));
+        }
+        return rows;
+    }
+
+    private static void sumFile(Path file, long since, Map<String, long[]> totals) throws SQLException {
+        // the bucket of since itself is included, rollups are only as precise as a minute.
+        final var bucket = since / PacketSchema.ROLLUPS.get("batched_packets_minute") * PacketSchema.ROLLUPS.get("batched_packets_minute");
+        try(final var conn = DriverManager.getConnection("jdbc:sqlite:%s".formatted(file.toAbsolutePath()))) {
+            // files written before the rollups existed can't answer this.
+            try(final var check = conn.createStatement();
+                final var rs = check.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = 'batched_packets_minute'")) {
+                if(!rs.next()) {
+                    return;
+                }
+            }
+            sumRollup(conn, bucket, totals);
+        }
+    }
+
+    private static void sumRollup(Connection conn, long bucket, Map<String, long[]> totals) throws SQLException {
+        try(final var statement = conn.prepareStatement(
+                "SELECT t.name, t.outgoing, SUM(r.amount), SUM(r.size_bytes) FROM batched_packets_minute r " +
+                "JOIN packet_type t ON t.id = r.packet_type_id WHERE r.bucket >= ? GROUP BY r.packet_type_id")) {
+            statement.setLong(1, bucket);
+            try(final var rs = statement.executeQuery()) {
+                while(rs.next()) {
+                    final var key = (rs.getBoolean(2) ? "out:" : "in:") + rs.getString(1);
+                    final var total = totals.computeIfAbsent(key, (k) -> new long[2]);
+                    total[0] += rs.getLong(3);
+                    total[1] += rs.getLong(4);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pick the busiest rows.
+     * @param rows the rows
+     * @param outgoing only outgoing if true, only incoming if false, both if null
+     * @param bySize whether to rank by total size instead of amount
+     * @param limit the amount of rows to keep
+     * @return the busiest rows, busiest first
+     */
+    public static List<Row> top(List<Row> rows, Boolean outgoing, boolean bySize, int limit) {
+        final Comparator<Row> order = bySize
+            ? Comparator.comparingLong(Row::size)
+            : Comparator.comparingLong(Row::amount);
+        return rows.stream()
+            .filter((row) -> outgoing == null || row.outgoing() == outgoing)
+            .sorted(order.reversed())
+            .limit(limit)
+            .toList();
+    }
+}
@@ -0,0 +1,212 @@
+package me.tech.packetlogger;
+
+import com.github.retrooper.packetevents.event.PacketReceiveEvent;
+import com.github.retrooper.packetevents.netty.buffer.ByteBufHelper;
+import com.velocitypowered.api.proxy.ProxyServer;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import net.kyori.adventure.text.Component;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces per connection budgets on serverbound packets, per packet type and for the bytes of all of them.
+ * <p>
+ * Every budget is a token bucket kept as a single theoretical arrival time (GCRA): a packet costs
+ * `1 / rate` seconds, and it's within budget as long as the arrival time doesn't run more than the
+ * burst ahead of now. The buckets of a connection live on its Netty channel and are only touched by
+ * its event loop, so a check is a few array reads and writes without locks or allocations.
+ */
+public final class PacketRateLimiter {
+    private static final Logger log = LoggerFactory.getLogger(PacketRateLimiter.class);
+    private static final AttributeKey<Budget> KEY = AttributeKey.valueOf("packetlogger-budget");
+    /** The least time between two warnings about the same connection. */
+    private static final long LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final ProxyServer server;
+    private final PacketTypeIndex packetTypes;
+    private final PacketCounters counters;
+    private final Action action;
+
+    /** The budget of every slot, -1 for slots without one. */
+    private final int[] budgets;
+    /** The nanos a packet of each budget costs. */
+    private final long[] packetCosts;
+    /** The nanos each budget may run ahead of now. */
+    private final long[] tolerances;
+    private final double byteCost;
+    private final long byteTolerance;
+
+    /**
+     * @param server the proxy, to disconnect players with a reason
+     * @param packetTypes the slot index
+     * @param counters the counters violations are counted into
+     * @param action what to do with packets over budget
+     * @param packetsPerSecond the packets per second a connection may send per slot, 0 for no limit
+     * @param bytesPerSecond the bytes per second a connection may send across every slot, 0 for no limit
+     * @param burstSeconds how many seconds worth of packets may arrive at once
+     */
+    public PacketRateLimiter(
+        final ProxyServer server,
+        final PacketTypeIndex packetTypes,
+        final PacketCounters counters,
+        final Action action,
+        final int[] packetsPerSecond,
+        final long bytesPerSecond,
+        final double burstSeconds
+    ) {
+        this.server = server;
+        this.packetTypes = packetTypes;
+        this.counters = counters;
+        this.action = action;
+
+        this.budgets = new int[packetsPerSecond.length];
+        int count = 0;
+        for(int index = 0; index < packetsPerSecond.length; index++) {
+            // clientbound packets are the proxy's own doing.
+            budgets[index] = packetsPerSecond[index] > 0 && !packetTypes.outgoing(index) ? count++ : -1;
+        }
+
+        this.packetCosts = new long[count];
+        this.tolerances = new long[count];
+        for(int index = 0; index < packetsPerSecond.length; index++) {
+            final var budget = budgets[index];
+            if(budget >= 0) {
+                packetCosts[budget] = TimeUnit.SECONDS.toNanos(1) / packetsPerSecond[index];
+                tolerances[budget] = (long) (burstSeconds * TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+
+        this.byteCost = bytesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / (double) bytesPerSecond : 0;
+        this.byteTolerance = (long) (burstSeconds * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * Give a new connection its budgets.
+     * Called from the event loop of the connection while it's being set up.
+     * @param channel the Netty channel of the PacketEvents user
+     */
+    public void connect(Object channel) {
+        if(channel != null) {
+            ((Channel) channel).attr(KEY).set(new Budget(packetCosts.length, System.nanoTime()));
+        }
+    }
+
+    /**
+     * Charge a serverbound packet against the budgets of its connection and act on a violation.
+     * Must run before every other listener, so a cancelled packet never reaches them.
+     * @param event the received packet event
+     */
+    public void check(PacketReceiveEvent event) {
+        final var index = packetTypes.indexOf(event.getPacketType());
+        if(index < 0 || event.getChannel() == null) {
+            return;
+        }
+
+        final var budget = ((Channel) event.getChannel()).attr(KEY).get();
+        if(budget == null) {
+            return;
+        }
+        if(budget.disconnected) {
+            event.setCancelled(true);
+            return;
+        }
+
+        final var now = System.nanoTime();
+        final var slotBudget = budgets[index];
+        final var byteBucket = budget.arrivals.length - 1;
+
+        // both budgets are checked before either is charged, so a packet rejected by one costs nothing.
+        if((slotBudget >= 0 && !within(budget.arrivals, slotBudget, now, tolerances[slotBudget]))
+            || (byteCost > 0 && !within(budget.arrivals, byteBucket, now, byteTolerance))) {
+            violated(event, budget, index, now);
+            return;
+        }
+
+        if(slotBudget >= 0) {
+            charge(budget.arrivals, slotBudget, now, packetCosts[slotBudget]);
+        }
+        if(byteCost > 0) {
+            charge(budget.arrivals, byteBucket, now, (long) (ByteBufHelper.readableBytes(event.getByteBuf()) * byteCost));
+        }
+    }
+
+    /**
+     * @param arrivals the theoretical arrival times of a connection
+     * @param bucket the bucket
+     * @param now the nano time of the packet
+     * @param tolerance the nanos the bucket may run ahead of now
+     * @return true if a packet arriving now is within the budget of the bucket
+     */
+    private static boolean within(long[] arrivals, int bucket, long now, long tolerance) {
+        return arrivals[bucket] - now <= tolerance;
+    }
+
+    /**
+     * Charge a packet that's within budget against a bucket.
+     * @param arrivals the theoretical arrival times of a connection
+     * @param bucket the bucket
+     * @param now the nano time of the packet
+     * @param cost the nanos the packet costs
+     */
+    private static void charge(long[] arrivals, int bucket, long now, long cost) {
+        arrivals[bucket] = Math.max(arrivals[bucket], now) + cost;
+    }
+
+    private void violated(PacketReceiveEvent event, Budget budget, int index, long now) {
+        counters.recordViolation(index);
+
+        if(now - budget.lastLoggedAt >= LOG_INTERVAL_NANOS) {
+            budget.lastLoggedAt = now;
+            log.warn("{} is over the {} budget, action {}", event.getUser().getName(), packetTypes.name(index), action);
+        }
+
+        switch(action) {
+            case LOG -> {}
+            case CANCEL -> event.setCancelled(true);
+            case DISCONNECT -> {
+                event.setCancelled(true);
+                budget.disconnected = true;
+
+                final var user = event.getUser();
+                final var player = user.getUUID() == null ? null : server.getPlayer(user.getUUID()).orElse(null);
+                if(player != null) {
+                    player.disconnect(Component.text("You are sending too many packets."));
+                } else {
+                    user.closeConnection();
+                }
+            }
+        }
+    }
+
+    /**
+     * The buckets of one connection.
+     */
+    private static final class Budget {
+        /** The theoretical arrival time per packet budget, then the one of the byte budget. */
+        private final long[] arrivals;
+        private long lastLoggedAt;
+        private boolean disconnected;
+
+        private Budget(int budgets, long now) {
+            this.arrivals = new long[budgets + 1];
+            Arrays.fill(arrivals, now);
+            this.lastLoggedAt = now - LOG_INTERVAL_NANOS;
+        }
+    }
+
+    /**
+     * What to do with a packet over budget.
+     */
+    public enum Action {
+        /** Only count and log it. */
+        LOG,
+        /** Drop the packet before the proxy handles it. */
+        CANCEL,
+        /** Drop the packet and disconnect the connection. */
+        DISCONNECT
+    }
+}
@@ -0,0 +1,179 @@
+package me.tech.packetlogger;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The SQLite schema, shared by the plugin and the offline exporters.
+ * It's plain JDBC, the exporters create it with nothing but the shaded SQLite driver.
+ */
+public final class PacketSchema {
+    /** The rollup tables of `batched_packets` and the bucket width they aggregate, in millis. */
+    public static final Map<String, Long> ROLLUPS = Map.of(
+        "batched_packets_minute", TimeUnit.MINUTES.toMillis(1),
+        "batched_packets_hour", TimeUnit.HOURS.toMillis(1)
+    );
+
+    private PacketSchema() {}
+
+    /**
+     * Create the SQLite tables
+     * This method will create the `batched_packets` table which contains the actual
+     * packet information
+     * And this method will create the `packet_type` dictionary which contains the name of a packet and
+     * whether it is incoming or outgoing which will then be joined into the graph.
+     * And this method will create the `connection_packets` table along with the `player` and
+     * `server` dictionaries it references, which hold the optional per connection dimensions.
+     * And this method will create the {@link #ROLLUPS} tables which hold `batched_packets` summed
+     * per minute and per hour, so queries over long ranges don't have to scan the raw rows, and which
+     * keep the wire sizes and rate limit violations once the raw rows are downsampled or purged.
+     * And this method will create the `heavy_hitters` table which holds the busiest connections of
+     * a few packet types per window, keyed by uuid so it doesn't depend on the player dictionary.
+     * @param conn the connection to create the tables on
+     * @throws SQLException if a table couldn't be created
+     */
+    public static void create(Connection conn) throws SQLException {
+        try(final var statement = conn.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS packet_type (" +
+                "id INTEGER PRIMARY KEY, " +
+                "name TEXT NOT NULL, " +
+                "outgoing INTEGER NOT NULL, " +
+                "UNIQUE (name, outgoing)" +
+                ");");
+
+            statement.execute("CREATE TABLE IF NOT EXISTS batched_packets (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "packet_type_id INTEGER NOT NULL REFERENCES packet_type (id), " +
+                "amount INTEGER NOT NULL," +
+                "size_bytes INTEGER NOT NULL, " +
+                "size_p50 INTEGER NOT NULL DEFAULT 0, " +
+                "size_p90 INTEGER NOT NULL DEFAULT 0, " +
+                "size_p99 INTEGER NOT NULL DEFAULT 0, " +
+                "size_max INTEGER NOT NULL DEFAULT 0, " +
+                "wire_bytes INTEGER NOT NULL DEFAULT 0, " +
+                "violations INTEGER NOT NULL DEFAULT 0, " +
+                "collected_at INTEGER NOT NULL" +
+                ");");
+            // covers time range scans per packet type, and still serves plain collected_at ranges like downsampling.
+            statement.execute("DROP INDEX IF EXISTS batched_packets_collected_at_idx;");
+            statement.execute("CREATE INDEX IF NOT EXISTS batched_packets_collected_at_type_idx ON batched_packets " +
+                "(collected_at, packet_type_id, amount, size_bytes);");
+
+            for(final var rollup : ROLLUPS.keySet()) {
+                statement.execute(("CREATE TABLE IF NOT EXISTS %s (" +
+                    "bucket INTEGER NOT NULL, " +
+                    "packet_type_id INTEGER NOT NULL REFERENCES packet_type (id), " +
+                    "amount INTEGER NOT NULL, " +
+                    "size_bytes INTEGER NOT NULL, " +
+                    "size_max INTEGER NOT NULL DEFAULT 0, " +
+                    "wire_bytes INTEGER NOT NULL DEFAULT 0, " +
+                    "violations INTEGER NOT NULL DEFAULT 0, " +
+                    "PRIMARY KEY (bucket, packet_type_id)" +
+                    ") WITHOUT ROWID;").formatted(rollup));
+            }
+
+            // files of the current period may have been created by an older version before a restart.
+            addColumn(conn, "batched_packets", "wire_bytes");
+            addColumn(conn, "batched_packets", "violations");
+            for(final var rollup : ROLLUPS.keySet()) {
+                addColumn(conn, rollup, "wire_bytes");
+                addColumn(conn, rollup, "violations");
+            }
+
+            statement.execute("CREATE TABLE IF NOT EXISTS player (" +
+                "id INTEGER PRIMARY KEY, " +
+                "uuid TEXT NOT NULL UNIQUE, " +
+                "username TEXT NOT NULL" +
+                ");");
+
+            statement.execute("CREATE TABLE IF NOT EXISTS server (" +
+                "id INTEGER PRIMARY KEY, " +
+                "name TEXT NOT NULL UNIQUE" +
+                ");");
+
+            statement.execute("CREATE TABLE IF NOT EXISTS connection_packets (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "packet_type_id INTEGER NOT NULL REFERENCES packet_type (id), " +
+                "player_id INTEGER NOT NULL, " +
+                "server_id INTEGER, " +
+                "amount INTEGER NOT NULL, " +
+                "size_bytes INTEGER NOT NULL, " +
+                "collected_at INTEGER NOT NULL" +
+                ");");
+
+            // covering indexes so per player / per server breakdowns never touch the table.
+            statement.execute("CREATE INDEX IF NOT EXISTS connection_packets_player_idx ON connection_packets " +
+                "(player_id, collected_at, packet_type_id, amount, size_bytes);");
+            statement.execute("CREATE INDEX IF NOT EXISTS connection_packets_server_idx ON connection_packets " +
+                "(server_id, collected_at, packet_type_id, amount, size_bytes);");
+
+            statement.execute("CREATE TABLE IF NOT EXISTS heavy_hitters (" +
+                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "packet_type_id INTEGER NOT NULL REFERENCES packet_type (id), " +
+                "uuid TEXT NOT NULL, " +
+                "username TEXT NOT NULL, " +
+                "rank INTEGER NOT NULL, " +
+                "amount INTEGER NOT NULL, " +
+                "collected_at INTEGER NOT NULL" +
+                ");");
+            statement.execute("CREATE INDEX IF NOT EXISTS heavy_hitters_collected_at_idx ON heavy_hitters " +
+                "(collected_at, packet_type_id, rank);");
+        }
+    }
+
+    /**
+     * Add a counter column that later versions introduced to a table that doesn't have it yet.
+     * @param conn the connection
+     * @param table the table
+     * @param column the column, an integer defaulting to 0
+     * @throws SQLException if the column couldn't be added
+     */
+    private static void addColumn(Connection conn, String table, String column) throws SQLException {
+        try(final var check = conn.prepareStatement("SELECT 1 FROM pragma_table_info(?) WHERE name = ?")) {
+            check.setString(1, table);
+            check.setString(2, column);
+            try(final var rs = check.executeQuery()) {
+                if(rs.next()) {
+                    return;
+                }
+            }
+        }
+        try(final var statement = conn.createStatement()) {
+            statement.execute("ALTER TABLE %s ADD COLUMN %s INTEGER NOT NULL DEFAULT 0;".formatted(table, column));
+        }
+    }
+
+    /**
+     * The upsert that adds a window to a rollup table.
+     * Parameters are the bucket, the packet type id, the amount, the size, the largest packet, the wire size and the violations.
+     * @param rollup the rollup table
+     * @return the SQL
+     */
+    public static String rollupUpsert(String rollup) {
+        return ("INSERT INTO %s (bucket, packet_type_id, amount, size_bytes, size_max, wire_bytes, violations) VALUES (?, ?, ?, ?, ?, ?, ?) " +
+            "ON CONFLICT (bucket, packet_type_id) DO UPDATE SET " +
+            "amount = amount + excluded.amount, size_bytes = size_bytes + excluded.size_bytes, " +
+            "size_max = MAX(size_max, excluded.size_max), wire_bytes = wire_bytes + excluded.wire_bytes, " +
+            "violations = violations + excluded.violations").formatted(rollup);
+    }
+
+    /**
+     * Rebuild every rollup table from the raw `batched_packets` rows.
+     * Only meant for files that were written without maintaining the rollups, e.g. exports.
+     * @param conn the connection to rebuild on
+     * @throws SQLException if a rollup couldn't be rebuilt
+     */
+    public static void rebuildRollups(Connection conn) throws SQLException {
+        try(final var statement = conn.createStatement()) {
+            for(final var rollup : ROLLUPS.entrySet()) {
+                statement.execute("DELETE FROM %s;".formatted(rollup.getKey()));
+                statement.execute(("INSERT INTO %s (bucket, packet_type_id, amount, size_bytes, size_max, wire_bytes, violations) " +
+                    "SELECT collected_at / %d * %d, packet_type_id, SUM(amount), SUM(size_bytes), MAX(size_max), SUM(wire_bytes), SUM(violations) " +
+                    "FROM batched_packets GROUP BY 1, 2;")
+                    .formatted(rollup.getKey(), rollup.getValue(), rollup.getValue()));
+            }
+        }
+    }
+}
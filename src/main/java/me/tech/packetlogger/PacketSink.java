@@ -0,0 +1,67 @@
+package me.tech.packetlogger;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Somewhere flushed packet windows are written to.
+ * A sink is only ever called from one thread, the writer executor for storage or its own
+ * {@link SinkWorker} for exporters. Every sink is handed the same snapshot, so they must not modify it.
+ */
+public interface PacketSink {
+    /**
+     * Open the sink, called once before the first write.
+     * @throws Exception if the sink couldn't be opened
+     */
+    void open() throws Exception;
+
+    /**
+     * Write a drained snapshot.
+     * @param snapshot the {@link PacketSnapshot} to write
+     * @throws Exception if the snapshot couldn't be written, it's dropped
+     */
+    void write(PacketSnapshot snapshot) throws Exception;
+
+    /**
+     * A window was dropped before it reached the sink or while it was written.
+     * Sinks that send deltas start their next window after it, so the dropped counts aren't spread
+     * over the next one. Called from the sink's thread, before the next write.
+     * @param collectedAt the epoch millis the dropped window ends at
+     */
+    default void dropped(long collectedAt) {}
+
+    /**
+     * Delete raw rows older than the raw retention from the files the sink is writing to,
+     * retention handles every other file. Called from the sink's thread.
+     * @param before the epoch millis to delete raw rows before
+     * @param connections whether the per connection rows are deleted too
+     */
+    default void purgeRaw(long before, boolean connections) {}
+
+    /**
+     * @return the files the sink is writing to, retention never deletes them
+     */
+    default List<Path> activeFiles() {
+        return List.of();
+    }
+
+    /**
+     * @return the bytes written to storage since the sink was opened, 0 if the sink can't tell
+     */
+    default long bytesWritten() {
+        return 0;
+    }
+
+    /**
+     * Close the sink, called once after the last write.
+     */
+    void close();
+
+    /**
+     * Close the sink, giving work it runs in the background until a deadline.
+     * @param deadlineNanos the {@link System#nanoTime()} to give up at
+     */
+    default void close(long deadlineNanos) {
+        close();
+    }
+}
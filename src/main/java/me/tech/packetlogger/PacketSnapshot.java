@@ -0,0 +1,60 @@
+package me.tech.packetlogger;
+
+import java.util.List;
+
+/**
+ * A frozen window of packet counters, indexed by packet type slot.
+ * @param collectedAt the epoch millis the window was drained at
+ * @param amounts the amount of packets per slot
+ * @param sizes the total decoded size of packets per slot
+ * @param wireSizes the total size packets took on the wire per slot, compressed and framed, 0 when it isn't tracked
+ * @param maxSizes the largest packet per slot
+ * @param sizeHistograms the {@link SizeHistogram} buckets per slot, null for slots without packets
+ * @param violations the packets over a {@link PacketRateLimiter} budget per slot
+ * @param connections the per player and per server records of the window
+ * @param heavyHitters the busiest connections of the tracked packet types, see {@link HeavyHitters}
+ */
+public record PacketSnapshot(
+    long collectedAt,
+    long[] amounts,
+    long[] sizes,
+    long[] wireSizes,
+    long[] maxSizes,
+    long[][] sizeHistograms,
+    long[] violations,
+    ConnectionDimensions.Snapshot connections,
+    List<HeavyHitters.Entry> heavyHitters
+) {
+    /**
+     * @return whether no packets were counted in this window and no players or servers came or went
+     */
+    public boolean isEmpty() {
+        return rows() == 0
+            && connections.players().isEmpty()
+            && connections.servers().isEmpty()
+            && connections.evictedPlayers().isEmpty();
+    }
+
+    /**
+     * @return the amount of rows this window writes, one per packet type seen plus the connection records and heavy hitters
+     */
+    public int rows() {
+        int rows = connections.records().size() + heavyHitters.size();
+        for(int i = 0; i < amounts.length; i++) {
+            if(amounts[i] != 0 || violations[i] != 0) {
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Estimate a size percentile of a slot.
+     * @param index the packet type slot
+     * @param percentile the percentile between 0 and 1
+     * @return the estimated size in bytes, never more than the largest packet
+     */
+    public long sizePercentile(int index, double percentile) {
+        return Math.min(SizeHistogram.percentile(sizeHistograms[index], percentile), maxSizes[index]);
+    }
+}
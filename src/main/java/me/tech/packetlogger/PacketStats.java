@@ -0,0 +1,208 @@
+package me.tech.packetlogger;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals of what has been counted and written, for the metrics endpoint.
+ * Drained snapshots are added to the totals, so with the undrained counters on top
+ * they give the packets seen since startup.
+ */
+public final class PacketStats {
+    private final long[] totalAmounts;
+    private final long[] totalSizes;
+    private final long[] totalWireSizes;
+    private final long[] totalViolations;
+    private long[] windowAmounts;
+    private long[] windowSizes;
+    private long windowMillis;
+    private long lastCollectedAt;
+
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushNanos = new AtomicLong();
+    private volatile long lastFlushNanos;
+    private final LongAdder rowsWritten = new LongAdder();
+    private final LongAdder droppedRecords = new LongAdder();
+    private final LongAdder skippedFlushes = new LongAdder();
+    private final LongAdder deferredFlushes = new LongAdder();
+    private volatile long bytesWritten;
+
+    private final LongAdder sampledAdds = new LongAdder();
+    private final LongAdder addNanos = new LongAdder();
+    private final LongAccumulator maxAddNanos = new LongAccumulator(Math::max, 0);
+
+    public PacketStats(int slots, long startedAt) {
+        this.totalAmounts = new long[slots];
+        this.totalSizes = new long[slots];
+        this.totalWireSizes = new long[slots];
+        this.totalViolations = new long[slots];
+        this.windowAmounts = new long[slots];
+        this.windowSizes = new long[slots];
+        this.lastCollectedAt = startedAt;
+    }
+
+    /**
+     * Add a drained snapshot to the totals and make it the current window.
+     * @param snapshot the drained {@link PacketSnapshot}
+     */
+    public synchronized void drained(PacketSnapshot snapshot) {
+        for(int i = 0; i < totalAmounts.length; i++) {
+            totalAmounts[i] += snapshot.amounts()[i];
+            totalSizes[i] += snapshot.sizes()[i];
+            totalWireSizes[i] += snapshot.wireSizes()[i];
+            totalViolations[i] += snapshot.violations()[i];
+        }
+
+        windowAmounts = snapshot.amounts();
+        windowSizes = snapshot.sizes();
+        windowMillis = snapshot.collectedAt() - lastCollectedAt;
+        lastCollectedAt = snapshot.collectedAt();
+    }
+
+    /**
+     * Record a snapshot the sink wrote.
+     * @param nanos how long the write took
+     * @param rows the amount of rows written
+     * @param bytesWritten the bytes the sink wrote since it was opened
+     */
+    public void flushed(long nanos, int rows, long bytesWritten) {
+        flushes.incrementAndGet();
+        flushNanos.addAndGet(nanos);
+        lastFlushNanos = nanos;
+        rowsWritten.add(rows);
+        this.bytesWritten = bytesWritten;
+    }
+
+    /**
+     * Record a due flush that was skipped as nothing was counted.
+     */
+    public void skipped() {
+        skippedFlushes.increment();
+    }
+
+    /**
+     * Record a due flush that was held back as the previous one was still being written.
+     */
+    public void deferred() {
+        deferredFlushes.increment();
+    }
+
+    /**
+     * Record the duration of a sampled packet add.
+     * @param nanos how long counting the packet took
+     */
+    public void timedAdd(long nanos) {
+        sampledAdds.increment();
+        addNanos.add(nanos);
+        maxAddNanos.accumulate(nanos);
+    }
+
+    /**
+     * Record a snapshot the sink failed to write.
+     * @param rows the amount of rows lost
+     */
+    public void dropped(int rows) {
+        droppedRecords.add(rows);
+    }
+
+    /**
+     * @param index the packet type slot
+     * @return the drained packets of a slot since startup
+     */
+    public synchronized long totalAmount(int index) {
+        return totalAmounts[index];
+    }
+
+    /**
+     * @param index the packet type slot
+     * @return the drained bytes of a slot since startup
+     */
+    public synchronized long totalSize(int index) {
+        return totalSizes[index];
+    }
+
+    /**
+     * @param index the packet type slot
+     * @return the drained wire bytes of a slot since startup
+     */
+    public synchronized long totalWireSize(int index) {
+        return totalWireSizes[index];
+    }
+
+    /**
+     * @param index the packet type slot
+     * @return the drained rate limit violations of a slot since startup
+     */
+    public synchronized long totalViolations(int index) {
+        return totalViolations[index];
+    }
+
+    /**
+     * @param index the packet type slot
+     * @return the packets per second of a slot over the last window
+     */
+    public synchronized double packetRate(int index) {
+        return windowMillis <= 0 ? 0 : windowAmounts[index] * 1000.0 / windowMillis;
+    }
+
+    /**
+     * @param index the packet type slot
+     * @return the bytes per second of a slot over the last window
+     */
+    public synchronized double byteRate(int index) {
+        return windowMillis <= 0 ? 0 : windowSizes[index] * 1000.0 / windowMillis;
+    }
+
+    public long flushes() {
+        return flushes.get();
+    }
+
+    public long flushNanos() {
+        return flushNanos.get();
+    }
+
+    public long lastFlushNanos() {
+        return lastFlushNanos;
+    }
+
+    public long rowsWritten() {
+        return rowsWritten.sum();
+    }
+
+    public long droppedRecords() {
+        return droppedRecords.sum();
+    }
+
+    public long skippedFlushes() {
+        return skippedFlushes.sum();
+    }
+
+    public long deferredFlushes() {
+        return deferredFlushes.sum();
+    }
+
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    public long sampledAdds() {
+        return sampledAdds.sum();
+    }
+
+    public long addNanos() {
+        return addNanos.sum();
+    }
+
+    public long maxAddNanos() {
+        return maxAddNanos.get();
+    }
+
+    /**
+     * @return the packets per second of every slot over the last window
+     */
+    public synchronized double packetRate() {
+        return windowMillis <= 0 ? 0 : Arrays.stream(windowAmounts).sum() * 1000.0 / windowMillis;
+    }
+}
@@ -0,0 +1,126 @@
+package me.tech.packetlogger;
+
+import com.github.retrooper.packetevents.protocol.PacketSide;
+import com.github.retrooper.packetevents.protocol.packettype.PacketType;
+import com.github.retrooper.packetevents.protocol.packettype.PacketTypeCommon;
+
+public final class PacketTypeIndex {
+    /** Every packet type enum PacketEvents can hand us, in slot order. */
+    private static final Class<?>[] TYPE_CLASSES = {
+        PacketType.Handshaking.Client.class,
+        PacketType.Handshaking.Server.class,
+        PacketType.Status.Client.class,
+        PacketType.Status.Server.class,
+        PacketType.Login.Client.class,
+        PacketType.Login.Server.class,
+        PacketType.Configuration.Client.class,
+        PacketType.Configuration.Server.class,
+        PacketType.Play.Client.class,
+        PacketType.Play.Server.class
+    };
+    /** The protocol state of every class in {@link #TYPE_CLASSES}. */
+    private static final String[] TYPE_STATES = {
+        "handshaking",
+        "handshaking",
+        "status",
+        "status",
+        "login",
+        "login",
+        "configuration",
+        "configuration",
+        "play",
+        "play"
+    };
+
+    private final int[] offsets = new int[TYPE_CLASSES.length];
+    private final String[] names;
+    private final boolean[] outgoing;
+    private final String[] states;
+
+    public PacketTypeIndex() {
+        int size = 0;
+        for(int i = 0; i < TYPE_CLASSES.length; i++) {
+            offsets[i] = size;
+            size += TYPE_CLASSES[i].getEnumConstants().length;
+        }
+
+        this.names = new String[size];
+        this.outgoing = new boolean[size];
+        this.states = new String[size];
+
+        for(int i = 0; i < TYPE_CLASSES.length; i++) {
+            final var constants = TYPE_CLASSES[i].getEnumConstants();
+            for(int j = 0; j < constants.length; j++) {
+                final var type = (PacketTypeCommon) constants[j];
+                names[offsets[i] + j] = type.getName();
+                outgoing[offsets[i] + j] = type.getSide() == PacketSide.SERVER;
+                states[offsets[i] + j] = TYPE_STATES[i];
+            }
+        }
+    }
+
+    /**
+     * Resolve a packet type to its slot.
+     * This is called for every packet so it only does an identity scan over
+     * the handful of enum classes and never touches the packet name.
+     * @param type the packet type
+     * @return the slot, or -1 if the type is unknown
+     */
+    public int indexOf(PacketTypeCommon type) {
+        if(!(type instanceof Enum<?> constant)) {
+            return -1;
+        }
+
+        final var declaringClass = constant.getDeclaringClass();
+        for(int i = 0; i < TYPE_CLASSES.length; i++) {
+            if(TYPE_CLASSES[i] == declaringClass) {
+                return offsets[i] + constant.ordinal();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the amount of slots
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @param name a packet name, e.g. `PLAYER_POSITION`
+     * @return whether any slot has the name
+     */
+    public boolean hasName(String name) {
+        for(final var slotName : names) {
+            if(slotName.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param index the slot
+     * @return the packet name of the slot
+     */
+    public String name(int index) {
+        return names[index];
+    }
+
+    /**
+     * @param index the slot
+     * @return whether the slot is an outgoing (clientbound) packet
+     */
+    public boolean outgoing(int index) {
+        return outgoing[index];
+    }
+
+    /**
+     * @param index the slot
+     * @return the protocol state of the slot, e.g. `play`
+     */
+    public String state(int index) {
+        return states[index];
+    }
+}
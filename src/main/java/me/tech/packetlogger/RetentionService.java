@@ -0,0 +1,390 @@
+package me.tech.packetlogger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Periodically enforces the retention policies on the data folder.
+ * <ul>
+ *     <li>by age, date folders older than `purge-days` are deleted</li>
+ *     <li>by raw data, SQLite rows older than `raw-retention-hours` are deleted, only the rollup tables and,
+ *     unless `raw-purge-connections` is set, the per connection rows keep that time range.
+ *     The files the sink is writing to are purged by the writer, which owns their connection</li>
+ *     <li>by archiving, closed files older than `archive-after-hours` are compressed</li>
+ *     <li>by disk budget, the oldest files are deleted until the date folders, `exports` and `captures` fit in `retention-max-disk-mb`</li>
+ * </ul>
+ * Only folders named after a date are touched, and the files the sink is writing are never deleted.
+ * Runs on its own low priority thread so it never holds up startup or the writer.
+ */
+public final class RetentionService {
+    private static final Logger log = LoggerFactory.getLogger(RetentionService.class);
+    private static final DateTimeFormatter FOLDER_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    /** Files SQLite keeps next to a database, they're deleted along with it. */
+    private static final List<String> SQLITE_SUFFIXES = List.of("-wal", "-shm", "-journal");
+
+    private final Path dataFolder;
+    private final int purgeDays;
+    private final long rawRetentionMillis;
+    /** Whether purging raw rows also drops the per connection rows, which have no rollup. */
+    private final boolean rawPurgeConnections;
+    private final long maxDiskBytes;
+    /** Null if archiving is disabled. */
+    private final PacketArchiver archiver;
+    private final Supplier<List<Path>> activeFiles;
+    /** Purges the raw rows of the active files on the writer, given the epoch millis to purge before. */
+    private final LongConsumer purgeActive;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        final var thread = new Thread(runnable, "packetlogger-retention");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    public RetentionService(
+        final Path dataFolder,
+        final int purgeDays,
+        final long rawRetentionMillis,
+        final boolean rawPurgeConnections,
+        final long maxDiskBytes,
+        final PacketArchiver archiver,
+        final Supplier<List<Path>> activeFiles,
+        final LongConsumer purgeActive
+    ) {
+        this.dataFolder = dataFolder;
+        this.purgeDays = purgeDays;
+        this.rawRetentionMillis = rawRetentionMillis;
+        this.rawPurgeConnections = rawPurgeConnections;
+        this.maxDiskBytes = maxDiskBytes;
+        this.archiver = archiver;
+        this.activeFiles = activeFiles;
+        this.purgeActive = purgeActive;
+    }
+
+    /**
+     * Start enforcing retention, the first run starts right away in the background.
+     * @param intervalMinutes the minutes between runs
+     */
+    public void start(int intervalMinutes) {
+        log.info("Packet Logs will be purged after {} days.", purgeDays);
+        executor.scheduleWithFixedDelay(this::run, 0, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Run every policy once, on the calling thread.
+     */
+    void run() {
+        try {
+            final var today = LocalDate.now();
+            final var folders = dateFolders();
+
+            if(purgeDays > 0) {
+                for(final var it = folders.entrySet().iterator(); it.hasNext(); ) {
+                    final var folder = it.next();
+                    if(ChronoUnit.DAYS.between(folder.getValue(), today) >= purgeDays) {
+                        deleteTree(folder.getKey());
+                        it.remove();
+                        log.info("Purged {}", folder.getKey().getFileName());
+                    }
+                }
+            }
+
+            if(rawRetentionMillis > 0) {
+                final var before = Instant.now().toEpochMilli() - rawRetentionMillis;
+                purgeActive.accept(before);
+                for(final var folder : folders.entrySet()) {
+                    // a folder starting after the cutoff can't hold anything older.
+                    if(folder.getValue().atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli() < before) {
+                        purgeRaw(folder.getKey(), before);
+                    }
+                }
+            }
+
+            if(archiver != null) {
+                for(final var folder : folders.keySet()) {
+                    archive(folder);
+                }
+            }
+
+            if(maxDiskBytes > 0) {
+                enforceBudget(folders);
+            }
+        } catch(Exception ex) {
+            log.error("Unable to enforce packet log retention", ex);
+        }
+    }
+
+    /**
+     * Compress every closed file in a folder that's old enough.
+     * @param folder the date folder
+     * @throws IOException if the folder couldn't be listed
+     */
+    private void archive(Path folder) throws IOException {
+        final var files = new ArrayList<Path>();
+        try(final var stream = Files.newDirectoryStream(folder)) {
+            for(final var file : stream) {
+                if(!isActive(file) && archiver.shouldArchive(file)) {
+                    files.add(file);
+                }
+            }
+        }
+
+        for(final var file : files) {
+            try {
+                final var before = Files.size(file);
+                final var archive = archiver.archive(file);
+                log.info("Archived {}, {} KiB to {} KiB", dataFolder.relativize(file), before / 1024, Files.size(archive) / 1024);
+            } catch(IOException ex) {
+                log.error("Unable to archive {}", file, ex);
+            }
+        }
+    }
+
+    /**
+     * @return every folder named after a date in the data folder, oldest first
+     * @throws IOException if the data folder couldn't be listed
+     */
+    private Map<Path, LocalDate> dateFolders() throws IOException {
+        return dateFolders(dataFolder);
+    }
+
+    /**
+     * @param dataFolder the plugin data folder
+     * @return every folder named after a date, oldest first
+     * @throws IOException if the data folder couldn't be listed
+     */
+    public static Map<Path, LocalDate> dateFolders(Path dataFolder) throws IOException {
+        final var folders = new ArrayList<Map.Entry<Path, LocalDate>>();
+        if(!Files.isDirectory(dataFolder)) {
+            return new LinkedHashMap<>();
+        }
+
+        try(final var stream = Files.newDirectoryStream(dataFolder, Files::isDirectory)) {
+            for(final var folder : stream) {
+                try {
+                    folders.add(Map.entry(folder, LocalDate.parse(folder.getFileName().toString(), FOLDER_FORMAT)));
+                } catch(DateTimeParseException ex) {
+                    // not ours, e.g. captures.
+                }
+            }
+        }
+
+        folders.sort(Map.Entry.comparingByValue());
+        final var sorted = new LinkedHashMap<Path, LocalDate>();
+        for(final var folder : folders) {
+            sorted.put(folder.getKey(), folder.getValue());
+        }
+        return sorted;
+    }
+
+    /**
+     * Drop the raw rows older than the cutoff of every closed SQLite file in a folder that has its rollups.
+     * Per connection rows are kept unless `raw-purge-connections` is set, nothing else holds that history.
+     * @param folder the date folder
+     * @param before the epoch millis to delete raw rows before
+     * @throws IOException if the folder couldn't be listed
+     */
+    private void purgeRaw(Path folder, long before) throws IOException {
+        try(final var stream = Files.newDirectoryStream(folder, "*.sqlite")) {
+            for(final var file : stream) {
+                if(isActive(file)) {
+                    continue;
+                }
+
+                try {
+                    purgeRaw(file.toAbsolutePath().toString(), before);
+                } catch(SQLException ex) {
+                    log.error("Unable to purge raw rows from {}", file, ex);
+                }
+            }
+        }
+    }
+
+    private void purgeRaw(String file, long before) throws SQLException {
+        try(final var conn = DriverManager.getConnection("jdbc:sqlite:%s".formatted(file));
+            final var statement = conn.createStatement()) {
+            // files written before the rollups existed would lose everything.
+            try(final var rs = statement.executeQuery(
+                "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name IN ('batched_packets', 'batched_packets_hour')")) {
+                if(!rs.next() || rs.getInt(1) != 2) {
+                    return;
+                }
+            }
+
+            var deleted = statement.executeUpdate("DELETE FROM batched_packets WHERE collected_at < %d;".formatted(before));
+            if(rawPurgeConnections) {
+                deleted += statement.executeUpdate("DELETE FROM connection_packets WHERE collected_at < %d;".formatted(before));
+            }
+            if(deleted == 0) {
+                return;
+            }
+            statement.execute("VACUUM;");
+            log.info("Purged {} raw packet rows from {}", deleted, file);
+        }
+    }
+
+    /**
+     * Delete the oldest files until the date folders, exports and capture dumps fit in the disk budget.
+     * @param folders the date folders, oldest first
+     * @throws IOException if a folder couldn't be walked
+     */
+    private void enforceBudget(Map<Path, LocalDate> folders) throws IOException {
+        final var budgeted = new ArrayList<>(folders.keySet());
+        for(final var name : List.of(Constants.EXPORTS_FOLDER_NAME, Constants.CAPTURES_FOLDER_NAME)) {
+            if(Files.isDirectory(dataFolder.resolve(name))) {
+                budgeted.add(dataFolder.resolve(name));
+            }
+        }
+
+        // files are grouped with their SQLite sidecars, then deleted oldest first across every folder.
+        final var groups = new ArrayList<FileGroup>();
+        long total = 0;
+        for(final var folder : budgeted) {
+            final var folderGroups = new ArrayList<FileGroup>();
+            final var byBase = new LinkedHashMap<Path, FileGroup>();
+            Files.walkFileTree(folder, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    final var group = byBase.computeIfAbsent(baseFile(file), (base) -> {
+                        final var created = new FileGroup(base, new ArrayList<>());
+                        folderGroups.add(created);
+                        return created;
+                    });
+                    group.files.add(file);
+                    group.size += attributes.size();
+                    group.modifiedAt = Math.max(group.modifiedAt, attributes.lastModifiedTime().toMillis());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            for(final var group : folderGroups) {
+                groups.add(group);
+                total += group.size;
+            }
+        }
+        groups.sort(Comparator.comparingLong((group) -> group.modifiedAt));
+
+        if(total <= maxDiskBytes) {
+            return;
+        }
+
+        for(final var group : groups) {
+            if(total <= maxDiskBytes) {
+                break;
+            }
+            if(isActive(group.base)) {
+                continue;
+            }
+
+            for(final var file : group.files) {
+                Files.deleteIfExists(file);
+            }
+            total -= group.size;
+            log.info("Deleted {} to stay within the disk budget", dataFolder.relativize(group.base));
+        }
+
+        for(final var folder : folders.keySet()) {
+            try(final var stream = Files.list(folder)) {
+                if(stream.findAny().isEmpty()) {
+                    Files.deleteIfExists(folder);
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete a folder and everything in it, skipping files the sink is writing.
+     * @param root the folder
+     * @throws IOException if the folder couldn't be walked
+     */
+    private void deleteTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                if(!isActive(file)) {
+                    Files.delete(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) {
+                try {
+                    Files.delete(dir);
+                } catch(IOException deleteEx) {
+                    log.error("Unable to delete {}", dir.getFileName());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private boolean isActive(Path file) {
+        final var base = baseFile(file).toAbsolutePath();
+        for(final var active : activeFiles.get()) {
+            if(active.toAbsolutePath().equals(base)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param file a file in a date folder
+     * @return the database a SQLite sidecar belongs to, or the file itself
+     */
+    private static Path baseFile(Path file) {
+        final var name = file.getFileName().toString();
+        for(final var suffix : SQLITE_SUFFIXES) {
+            if(name.endsWith(suffix)) {
+                return file.resolveSibling(name.substring(0, name.length() - suffix.length()));
+            }
+        }
+        return file;
+    }
+
+    /**
+     * A file and its SQLite sidecars.
+     */
+    private static final class FileGroup {
+        private final Path base;
+        private final List<Path> files;
+        private long size;
+        private long modifiedAt;
+
+        private FileGroup(Path base, List<Path> files) {
+            this.base = base;
+            this.files = files;
+        }
+
+    }
+}
@@ -0,0 +1,406 @@
+package me.tech.packetlogger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits the SQLite output into one {@link PacketDatabase} per period instead of one per proxy start.
+ * Periods start at local midnight and every `rotate-minutes` after it, or only at midnight when it's 0,
+ * so a file never spans two date folders, and a file is also rotated early once it grows past `rotate-mb`.
+ * <p>
+ * The database of the next period is opened in the background ahead of time, as is the one a size
+ * rotation switches to once a file is half of `rotate-mb`, and files that were rotated out are
+ * optimized and closed in the background, so the writer only ever swaps a reference.
+ */
+public final class RotatingPacketDatabase implements PacketSink {
+    private static final Logger log = LoggerFactory.getLogger(RotatingPacketDatabase.class);
+
+    private final Path dataFolder;
+    private final PacketTypeIndex packetTypes;
+    private final String synchronous;
+    private final int pageSize;
+    private final long rotateMillis;
+    private final long rotateBytes;
+
+    private final ExecutorService background = Executors.newSingleThreadExecutor((runnable) -> {
+        final var thread = new Thread(runnable, "packetlogger-rotation");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /** Every player still online and every server, so a new file can get the ones its connection rows reference. */
+    private final Map<Integer, ConnectionDimensions.PlayerEntry> players = new HashMap<>();
+    private final Map<Integer, ConnectionDimensions.ServerEntry> servers = new HashMap<>();
+    /** The players and servers already written to the current file. */
+    private final Set<Integer> currentPlayers = new HashSet<>();
+    private final Set<Integer> currentServers = new HashSet<>();
+
+    private PacketDatabase current;
+    /** Read by retention, so it never deletes the file being written. */
+    private volatile Path currentFile;
+    /** The file opened ahead of time for the next period, read by retention. */
+    private volatile Path nextFile;
+    /** Files rotated out or discarded that the background thread still has open, read by retention. */
+    private final Set<Path> closingFiles = ConcurrentHashMap.newKeySet();
+    private long nextRotationAt;
+    private CompletableFuture<PacketDatabase> next;
+    /** The file opened ahead of time for a size rotation within the current period, read by retention. */
+    private volatile Path spareFile;
+    private CompletableFuture<PacketDatabase> spare;
+    /** The bytes written by the files that were rotated out. */
+    private long bytesWritten;
+
+    public RotatingPacketDatabase(
+        final Path dataFolder,
+        final PacketTypeIndex packetTypes,
+        final String synchronous,
+        final int pageSize,
+        final long rotateMillis,
+        final long rotateBytes
+    ) {
+        this.dataFolder = dataFolder;
+        this.packetTypes = packetTypes;
+        this.synchronous = synchronous;
+        this.pageSize = pageSize;
+        this.rotateMillis = rotateMillis;
+        this.rotateBytes = rotateBytes;
+    }
+
+    @Override
+    public void open() throws SQLException {
+        final var now = Instant.now().toEpochMilli();
+        use(openDatabase(now), now);
+    }
+
+    @Override
+    public void write(PacketSnapshot snapshot) throws Exception {
+        final var now = snapshot.collectedAt();
+        if(now >= nextRotationAt) {
+            // the spare belongs to the period that just ended.
+            discard(spare, spareFile);
+            spare = null;
+            spareFile = null;
+            rotate(takeNext(now), now);
+        } else if(rotateBytes > 0) {
+            rotateOnSize(now);
+        }
+
+        final var connections = snapshot.connections();
+        for(final var player : connections.players()) {
+            players.put(player.id(), player);
+        }
+        for(final var server : connections.servers()) {
+            servers.put(server.id(), server);
+        }
+
+        // only the players and servers the file's connection rows reference, some were interned before it existed.
+        final var newPlayers = new LinkedHashMap<Integer, ConnectionDimensions.PlayerEntry>();
+        final var newServers = new LinkedHashMap<Integer, ConnectionDimensions.ServerEntry>();
+        for(final var record : connections.records()) {
+            final var player = players.get(record.playerId());
+            if(player != null && !currentPlayers.contains(player.id())) {
+                newPlayers.put(player.id(), player);
+            }
+            final var server = servers.get(record.serverId());
+            if(server != null && !currentServers.contains(server.id())) {
+                newServers.put(server.id(), server);
+            }
+        }
+        snapshot = new PacketSnapshot(
+            snapshot.collectedAt(),
+            snapshot.amounts(),
+            snapshot.sizes(),
+            snapshot.wireSizes(),
+            snapshot.maxSizes(),
+            snapshot.sizeHistograms(),
+            snapshot.violations(),
+            new ConnectionDimensions.Snapshot(
+                connections.records(),
+                new ArrayList<>(newPlayers.values()),
+                new ArrayList<>(newServers.values()),
+                connections.evictedPlayers()
+            ),
+            snapshot.heavyHitters()
+        );
+
+        try {
+            current.write(snapshot);
+            // only once committed, rows of a later window may still need entries a failed one didn't write.
+            currentPlayers.addAll(newPlayers.keySet());
+            currentServers.addAll(newServers.keySet());
+        } finally {
+            for(final var id : connections.evictedPlayers()) {
+                players.remove(id);
+                currentPlayers.remove(id);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        close(System.nanoTime() + TimeUnit.SECONDS.toNanos(30));
+    }
+
+    /**
+     * Close the current file, then wait for the files being sealed until the deadline.
+     * A file that isn't sealed by then is still a complete database, it just isn't vacuumed.
+     */
+    @Override
+    public void close(long deadlineNanos) {
+        discardNext();
+        discard(spare, spareFile);
+        spare = null;
+        spareFile = null;
+        if(current != null) {
+            current.close();
+        }
+
+        background.shutdown();
+        try {
+            if(!background.awaitTermination(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                log.warn("Packet databases weren't sealed before the shutdown deadline: {}", closingFiles);
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Only the current file, the files rotated out are closed and retention purges them itself.
+     */
+    @Override
+    public void purgeRaw(long before, boolean connections) {
+        if(current != null) {
+            current.purgeRaw(before, connections);
+        }
+    }
+
+    /**
+     * @return the file being written, the one opened for the next period and the ones still being sealed
+     */
+    @Override
+    public List<Path> activeFiles() {
+        final var files = new ArrayList<>(closingFiles);
+        final var file = currentFile;
+        if(file != null) {
+            files.add(file);
+        }
+        final var next = nextFile;
+        if(next != null) {
+            files.add(next);
+        }
+        final var spare = spareFile;
+        if(spare != null) {
+            files.add(spare);
+        }
+        return files;
+    }
+
+    @Override
+    public long bytesWritten() {
+        return bytesWritten + (current == null ? 0 : current.bytesWritten());
+    }
+
+    /**
+     * Swap to a new database and seal the old one in the background.
+     * @param database the opened {@link PacketDatabase} to write to
+     * @param now the epoch millis of the rotation
+     */
+    private void rotate(PacketDatabase database, long now) {
+        final var sealed = current;
+        bytesWritten += sealed.bytesWritten();
+        closingFiles.add(sealed.file());
+        use(database, now);
+
+        background.execute(() -> {
+            try {
+                sealed.seal();
+                log.info("Sealed packet database {}", sealed.file().getFileName());
+            } finally {
+                closingFiles.remove(sealed.file());
+            }
+        });
+    }
+
+    private void use(PacketDatabase database, long now) {
+        current = database;
+        currentFile = database.file();
+        currentPlayers.clear();
+        currentServers.clear();
+
+        // a size rotation stays in the same period, the prepared file is still the right one.
+        final var rotationAt = nextPeriodStart(now);
+        if(rotationAt != nextRotationAt) {
+            nextRotationAt = rotationAt;
+            nextFile = databaseFile(rotationAt);
+            next = prepare(rotationAt);
+        }
+        log.info("Writing packets to {}", dataFolder.relativize(database.file()));
+    }
+
+    /**
+     * Open the file for the rest of the period in the background once the current one is half full,
+     * and switch to it once the current one is full and the spare is ready. Until then the current
+     * file keeps growing a little past `rotate-mb` rather than the writer waiting on an open.
+     * @param now the epoch millis of the write
+     * @throws SQLException if the spare couldn't be opened and neither could a database now
+     */
+    private void rotateOnSize(long now) throws SQLException {
+        final var size = current.sizeBytes();
+        if(spare == null && size >= rotateBytes / 2) {
+            spareFile = databaseFile(now);
+            spare = prepare(now);
+        }
+        if(size < rotateBytes || spare == null || !spare.isDone()) {
+            return;
+        }
+
+        final var prepared = spare;
+        spare = null;
+        spareFile = null;
+        PacketDatabase database;
+        try {
+            database = prepared.join();
+        } catch(CompletionException ex) {
+            log.error("Unable to open the next packet database ahead of time", ex.getCause());
+            database = openDatabase(now);
+        }
+        rotate(database, now);
+    }
+
+    /**
+     * @param periodStart the epoch millis the file starts at
+     * @return the database of the file, opened on the background thread
+     */
+    private CompletableFuture<PacketDatabase> prepare(long periodStart) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return openDatabase(periodStart);
+            } catch(SQLException ex) {
+                throw new RuntimeException(ex);
+            }
+        }, background);
+    }
+
+    /**
+     * Take the database that was opened ahead of time, or open one now if that failed.
+     * @param now the epoch millis of the rotation
+     * @return the opened {@link PacketDatabase}
+     * @throws SQLException if no database could be opened
+     */
+    private PacketDatabase takeNext(long now) throws SQLException {
+        // nothing was written for a whole period, e.g. the proxy was suspended, the prepared file is stale.
+        if(nextPeriodStart(now) != nextPeriodStart(nextRotationAt)) {
+            discardNext();
+            return openDatabase(now);
+        }
+
+        final var prepared = next;
+        next = null;
+        // use() replaces it with the following period's file right after, the current file covers it until then.
+        nextFile = null;
+        if(prepared != null) {
+            try {
+                return prepared.get();
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch(ExecutionException ex) {
+                log.error("Unable to open the next packet database ahead of time", ex.getCause());
+            }
+        }
+        return openDatabase(now);
+    }
+
+    /**
+     * Close the database opened ahead of time for the next period and delete it, nothing was written to it.
+     */
+    private void discardNext() {
+        discard(next, nextFile);
+        next = null;
+        nextFile = null;
+    }
+
+    /**
+     * Close a database opened ahead of time and delete it, nothing was written to it.
+     * @param prepared the database being opened, nothing happens if null
+     * @param file its file, kept in {@link #activeFiles()} until it's deleted
+     */
+    private void discard(CompletableFuture<PacketDatabase> prepared, Path file) {
+        if(prepared == null) {
+            return;
+        }
+
+        if(file != null) {
+            closingFiles.add(file);
+        }
+        prepared.whenCompleteAsync((database, ex) -> {
+            if(database != null) {
+                database.close();
+                database.delete();
+            }
+            if(file != null) {
+                closingFiles.remove(file);
+            }
+        }, background);
+    }
+
+    /**
+     * Open the database of a period, in the date folder the period starts in.
+     * @param periodStart the epoch millis the period starts at
+     * @return the opened {@link PacketDatabase}
+     * @throws SQLException if the database couldn't be opened
+     */
+    private PacketDatabase openDatabase(long periodStart) throws SQLException {
+        final var database = new PacketDatabase(
+            databaseFile(periodStart),
+            packetTypes,
+            synchronous,
+            pageSize
+        );
+        database.open();
+        return database;
+    }
+
+    /**
+     * @param periodStart the epoch millis the period starts at
+     * @return the database file of a period
+     */
+    private Path databaseFile(long periodStart) {
+        return dataFolder.resolve(Constants.folderName(periodStart)).resolve(Constants.sqliteFileName(periodStart));
+    }
+
+    /**
+     * @param now epoch millis
+     * @return the epoch millis the period after the one containing now starts at
+     */
+    private long nextPeriodStart(long now) {
+        final var zone = ZoneId.systemDefault();
+        final var today = Instant.ofEpochMilli(now).atZone(zone).toLocalDate();
+        final var midnight = today.atStartOfDay(zone).toInstant().toEpochMilli();
+        final var tomorrow = today.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        if(rotateMillis <= 0) {
+            return tomorrow;
+        }
+        return Math.min(midnight + ((now - midnight) / rotateMillis + 1) * rotateMillis, tomorrow);
+    }
+}
@@ -0,0 +1,182 @@
+package me.tech.packetlogger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs an exporter {@link PacketSink} on its own thread with its own bounded queue.
+ * Windows are offered without ever blocking, once the queue is full they're dropped for
+ * this sink only, so a slow or unreachable exporter can't hold up storage or the other exporters.
+ */
+public final class SinkWorker {
+    private static final Logger log = LoggerFactory.getLogger(SinkWorker.class);
+
+    private final String name;
+    private final PacketSink sink;
+    private final ThreadPoolExecutor executor;
+    /** One permit per window the worker may hold, queued or being written. */
+    private final Semaphore permits;
+
+    private final AtomicLong writtenWindows = new AtomicLong();
+    private final AtomicLong droppedWindows = new AtomicLong();
+    /** The end of the latest window dropped as the queue was full, 0 once the sink was told. */
+    private final AtomicLong droppedUntil = new AtomicLong();
+    /** Only touched by the worker thread, so a failing sink logs once instead of every window. */
+    private boolean failing;
+    private volatile boolean opened;
+
+    /**
+     * @param name the exporter name, used for the thread and in logs
+     * @param sink the sink to run
+     * @param queueSize the amount of windows that may wait for the sink
+     */
+    public SinkWorker(String name, PacketSink sink, int queueSize) {
+        this.name = name;
+        this.sink = sink;
+        this.permits = new Semaphore(queueSize);
+        // one extra slot for closing the sink, and a daemon thread so a stuck export can't hold the proxy up.
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize + 1), (runnable) -> {
+            final var thread = new Thread(runnable, "packetlogger-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Open the sink on the worker thread, a sink that can't be opened drops every window.
+     */
+    public void open() {
+        executor.execute(() -> {
+            try {
+                sink.open();
+                opened = true;
+                log.info("Exporting packets to {}", name);
+            } catch(Exception ex) {
+                log.error("Unable to open the {} exporter, it's disabled", name, ex);
+            }
+        });
+    }
+
+    /**
+     * Queue a window for the sink, dropping it if the queue is full or the worker was closed.
+     * The snapshot is shared with every other sink and must not be modified.
+     * @param snapshot the {@link PacketSnapshot} to write
+     */
+    public void offer(PacketSnapshot snapshot) {
+        if(!permits.tryAcquire()) {
+            droppedWindows.incrementAndGet();
+            droppedUntil.accumulateAndGet(snapshot.collectedAt(), Math::max);
+            return;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    write(snapshot);
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch(RejectedExecutionException ex) {
+            // closed, the sink is gone.
+            permits.release();
+            droppedWindows.incrementAndGet();
+        }
+    }
+
+    private void write(PacketSnapshot snapshot) {
+        if(!opened) {
+            droppedWindows.incrementAndGet();
+            return;
+        }
+
+        // windows queued before the dropped one are still written first.
+        final var dropped = droppedUntil.get();
+        if(dropped != 0 && dropped < snapshot.collectedAt()) {
+            droppedUntil.compareAndSet(dropped, 0);
+            sink.dropped(dropped);
+        }
+
+        try {
+            sink.write(snapshot);
+            writtenWindows.incrementAndGet();
+            if(failing) {
+                failing = false;
+                log.info("The {} exporter recovered", name);
+            }
+        } catch(Exception ex) {
+            droppedWindows.incrementAndGet();
+            sink.dropped(snapshot.collectedAt());
+            if(!failing) {
+                failing = true;
+                log.warn("The {} exporter failed, windows are dropped until it recovers", name, ex);
+            }
+        }
+    }
+
+    /**
+     * Write what's queued, then close the sink.
+     * Blocks until it's done or the deadline passes, closing twice only waits again.
+     * @param deadlineNanos the {@link System#nanoTime()} to give up at
+     */
+    public void close(long deadlineNanos) {
+        try {
+            executor.execute(sink::close);
+        } catch(RejectedExecutionException ex) {
+            // already closing.
+        }
+        executor.shutdown();
+        try {
+            if(!executor.awaitTermination(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                log.warn("The {} exporter didn't finish in time, {} windows were lost", name, executor.getQueue().size());
+                executor.shutdownNow();
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the exporter name
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * @return the files the sink is writing to
+     */
+    public List<Path> activeFiles() {
+        return sink.activeFiles();
+    }
+
+    /**
+     * @return the amount of windows written
+     */
+    public long writtenWindows() {
+        return writtenWindows.get();
+    }
+
+    /**
+     * @return the amount of windows dropped as the queue was full or the write failed
+     */
+    public long droppedWindows() {
+        return droppedWindows.get();
+    }
+
+    /**
+     * @return the amount of windows waiting for the sink
+     */
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+}
@@ -0,0 +1,77 @@
+package me.tech.packetlogger;
+
+/**
+ * Log bucketed packet size histograms.
+ * Every power of two range is split into {@value #SUB_BUCKETS} linear sub buckets, like HdrHistogram
+ * with one significant digit, so a bucket is never more than 25% off while the whole int range
+ * fits into {@link #BUCKETS} buckets.
+ */
+public final class SizeHistogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** The amount of buckets needed to cover every non negative int. */
+    public static final int BUCKETS = bucket(Integer.MAX_VALUE) + 1;
+
+    private SizeHistogram() {}
+
+    /**
+     * Find the bucket of a size, this is branch light and allocation free.
+     * @param size the packet size in bytes
+     * @return the bucket
+     */
+    public static int bucket(int size) {
+        if(size < SUB_BUCKETS) {
+            return Math.max(size, 0);
+        }
+
+        final var exponent = 31 - Integer.numberOfLeadingZeros(size);
+        final var subBucket = (size >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param bucket the bucket
+     * @return the largest size that falls into the bucket
+     */
+    public static long upperBound(int bucket) {
+        if(bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        final var exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        final var subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        final var lowerBound = (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Estimate a percentile from bucket counts.
+     * @param buckets the bucket counts, may be null if nothing was recorded
+     * @param percentile the percentile between 0 and 1
+     * @return the upper bound of the bucket the percentile falls into, or 0 if it's empty
+     */
+    public static long percentile(long[] buckets, double percentile) {
+        if(buckets == null) {
+            return 0;
+        }
+
+        long total = 0;
+        for(final var count : buckets) {
+            total += count;
+        }
+        if(total == 0) {
+            return 0;
+        }
+
+        final var rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for(int bucket = 0; bucket < buckets.length; bucket++) {
+            seen += buckets[bucket];
+            if(seen >= Math.max(rank, 1)) {
+                return upperBound(bucket);
+            }
+        }
+        return upperBound(buckets.length - 1);
+    }
+}
@@ -0,0 +1,62 @@
+package me.tech.packetlogger;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The packet totals of the most recent windows, for answering queries without touching storage.
+ * Only the per slot amounts and sizes are kept, windows older than the retention are evicted.
+ */
+public final class SnapshotRing {
+    private final long retentionMillis;
+    private final int maxWindows;
+    private final Deque<Window> windows = new ArrayDeque<>();
+    /** The epoch millis the newest window ends at, the next window starts there. */
+    private long lastCollectedAt;
+
+    public SnapshotRing(long retentionMillis, int maxWindows, long startedAt) {
+        this.retentionMillis = retentionMillis;
+        this.maxWindows = maxWindows;
+        this.lastCollectedAt = startedAt;
+    }
+
+    /**
+     * Add a drained window.
+     * @param snapshot the drained {@link PacketSnapshot}
+     */
+    public synchronized void add(PacketSnapshot snapshot) {
+        windows.addLast(new Window(lastCollectedAt, snapshot.collectedAt(), snapshot.amounts(), snapshot.sizes()));
+        lastCollectedAt = snapshot.collectedAt();
+
+        while(!windows.isEmpty() && (windows.size() > maxWindows || windows.peekFirst().end() < lastCollectedAt - retentionMillis)) {
+            windows.removeFirst();
+        }
+    }
+
+    /**
+     * Sum every window that ends after a point in time.
+     * @param since the epoch millis to sum from
+     * @param amounts the amounts to add into, per slot
+     * @param sizes the sizes to add into, per slot
+     * @return false if the ring doesn't go back far enough to cover since
+     */
+    public synchronized boolean sum(long since, long[] amounts, long[] sizes) {
+        final var oldest = windows.peekFirst();
+        if(oldest == null || oldest.start() > since) {
+            return false;
+        }
+
+        for(final var window : windows) {
+            if(window.end() <= since) {
+                continue;
+            }
+            for(int i = 0; i < amounts.length; i++) {
+                amounts[i] += window.amounts()[i];
+                sizes[i] += window.sizes()[i];
+            }
+        }
+        return true;
+    }
+
+    private record Window(long start, long end, long[] amounts, long[] sizes) {}
+}
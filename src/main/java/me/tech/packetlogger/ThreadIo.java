@@ -0,0 +1,38 @@
+package me.tech.packetlogger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reads the I/O counters of the calling thread from `/proc/thread-self/io`.
+ * Only Linux has them, everywhere else {@link #writtenBytes()} returns -1.
+ */
+public final class ThreadIo {
+    private static final Path IO_FILE = Path.of("/proc/thread-self/io");
+    private static final String WRITTEN_KEY = "wchar:";
+
+    private static volatile boolean available = Files.isReadable(IO_FILE);
+
+    private ThreadIo() {}
+
+    /**
+     * @return the bytes the calling thread passed to write syscalls, or -1 if unknown
+     */
+    public static long writtenBytes() {
+        if(!available) {
+            return -1;
+        }
+
+        try {
+            for(final var line : Files.readAllLines(IO_FILE)) {
+                if(line.startsWith(WRITTEN_KEY)) {
+                    return Long.parseLong(line.substring(WRITTEN_KEY.length()).trim());
+                }
+            }
+        } catch(IOException | NumberFormatException ex) {
+            available = false;
+        }
+        return -1;
+    }
+}
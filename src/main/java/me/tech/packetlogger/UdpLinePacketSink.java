@@ -0,0 +1,134 @@
+package me.tech.packetlogger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends every window as StatsD counters or InfluxDB line protocol over UDP.
+ * Lines are packed into datagrams of at most `maxPacketBytes` so they don't get fragmented,
+ * and the channel is never connected, so an agent that isn't listening can't make writes fail.
+ */
+public final class UdpLinePacketSink implements PacketSink {
+    private static final Logger log = LoggerFactory.getLogger(UdpLinePacketSink.class);
+
+    private final Format format;
+    private final String host;
+    private final int port;
+    private final PacketTypeIndex packetTypes;
+    private final String prefix;
+    private final ByteBuffer buffer;
+
+    private InetSocketAddress address;
+    private DatagramChannel channel;
+
+    /**
+     * @param format the line format
+     * @param host the agent host
+     * @param port the agent port
+     * @param packetTypes the slot index
+     * @param prefix the StatsD metric prefix or the Influx measurement
+     * @param maxPacketBytes the largest datagram to send
+     */
+    public UdpLinePacketSink(
+        final Format format,
+        final String host,
+        final int port,
+        final PacketTypeIndex packetTypes,
+        final String prefix,
+        final int maxPacketBytes
+    ) {
+        this.format = format;
+        this.host = host;
+        this.port = port;
+        this.packetTypes = packetTypes;
+        this.prefix = prefix;
+        this.buffer = ByteBuffer.allocate(maxPacketBytes);
+    }
+
+    @Override
+    public void open() throws IOException {
+        // resolved here so a slow DNS lookup runs on the exporter thread.
+        address = new InetSocketAddress(host, port);
+        if(address.isUnresolved()) {
+            throw new IOException("Unable to resolve %s".formatted(host));
+        }
+        channel = DatagramChannel.open();
+    }
+
+    @Override
+    public void write(PacketSnapshot snapshot) throws IOException {
+        final var timestamp = TimeUnit.MILLISECONDS.toNanos(snapshot.collectedAt());
+        for(final var row : PacketQuery.fromTotals(packetTypes, snapshot.amounts(), snapshot.sizes())) {
+            final var direction = row.outgoing() ? "out" : "in";
+            switch(format) {
+                case STATSD -> {
+                    final var metric = "%s.%s.%s".formatted(prefix, direction, row.name().toLowerCase(Locale.ROOT));
+                    append(metric + ".packets:" + row.amount() + "|c");
+                    append(metric + ".bytes:" + row.size() + "|c");
+                }
+                case INFLUX -> append("%s,packet=%s,direction=%s packets=%di,bytes=%di %d".formatted(
+                    prefix, row.name(), direction, row.amount(), row.size(), timestamp));
+            }
+        }
+        send();
+    }
+
+    /**
+     * Add a line to the datagram, sending the datagram first if the line doesn't fit anymore.
+     */
+    private void append(String line) throws IOException {
+        final var bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > buffer.remaining()) {
+            send();
+        }
+        if(bytes.length > buffer.remaining()) {
+            // a single line never comes close to a datagram, but don't send half of one.
+            return;
+        }
+        buffer.put(bytes);
+    }
+
+    private void send() throws IOException {
+        if(buffer.position() == 0) {
+            return;
+        }
+
+        buffer.flip();
+        try {
+            channel.send(buffer, address);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        if(channel == null) {
+            return;
+        }
+
+        try {
+            channel.close();
+        } catch(IOException ex) {
+            log.error("Unable to close the UDP metrics channel", ex);
+        }
+    }
+
+    /**
+     * The line format to send.
+     */
+    public enum Format {
+        /** `<prefix>.<in|out>.<packet>.packets:<n>|c` and `.bytes:<n>|c` counters. */
+        STATSD,
+        /** `<measurement>,packet=<packet>,direction=<in|out> packets=<n>i,bytes=<n>i <timestamp>` points. */
+        INFLUX
+    }
+}
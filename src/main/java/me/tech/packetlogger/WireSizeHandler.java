@@ -0,0 +1,112 @@
+package me.tech.packetlogger;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.AttributeKey;
+
+/**
+ * Measures what packets take on the wire, after compression and with their length prefix,
+ * next to the decoded size PacketEvents hands to {@link BatchedPacketsService#add}.
+ * <p>
+ * The handler sits between Velocity's `frame-decoder` and `frame-encoder`, where every frame
+ * is still compressed but already split, so the only thing it doesn't know is the packet type.
+ * Decoding and encoding run synchronously on the event loop of the channel, so each direction
+ * only needs a single slot: an incoming frame's size is set for as long as it's passed on to
+ * PacketEvents, and an outgoing packet's type is set by PacketEvents until its frame is written.
+ */
+public final class WireSizeHandler extends ChannelDuplexHandler {
+    public static final String NAME = "packetlogger-wire-size";
+    private static final AttributeKey<WireSizeHandler> KEY = AttributeKey.valueOf(NAME);
+    private static final String FRAME_DECODER = "frame-decoder";
+
+    private final PacketCounters counters;
+
+    /** The wire size of the incoming frame being decoded, -1 outside of a read. */
+    private int inboundSize = -1;
+    /** The slot of the outgoing packet being encoded, -1 if none or an unknown type. */
+    private int outboundIndex = -1;
+
+    private WireSizeHandler(PacketCounters counters) {
+        this.counters = counters;
+    }
+
+    /**
+     * Add a handler to a connection, right after its frame decoder.
+     * @param channel the Netty channel of a PacketEvents user
+     * @param counters the counters to add outgoing wire sizes to
+     * @return false if the channel has no frame decoder, e.g. a legacy ping
+     */
+    public static boolean install(Object channel, PacketCounters counters) {
+        final var nettyChannel = (Channel) channel;
+        final var pipeline = nettyChannel.pipeline();
+        if(pipeline.get(FRAME_DECODER) == null || pipeline.get(NAME) != null) {
+            return false;
+        }
+
+        final var handler = new WireSizeHandler(counters);
+        pipeline.addAfter(FRAME_DECODER, NAME, handler);
+        nettyChannel.attr(KEY).set(handler);
+        return true;
+    }
+
+    /**
+     * @param channel the Netty channel of a PacketEvents user
+     * @return the handler of the channel, or null if it has none
+     */
+    public static WireSizeHandler of(Object channel) {
+        return channel == null ? null : ((Channel) channel).attr(KEY).get();
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if(!(msg instanceof ByteBuf frame)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        final var length = frame.readableBytes();
+        inboundSize = length + varIntBytes(length);
+        try {
+            ctx.fireChannelRead(msg);
+        } finally {
+            inboundSize = -1;
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        // the frame encoder already ran, the length prefix is part of the buffer.
+        final var index = outboundIndex;
+        outboundIndex = -1;
+        if(msg instanceof ByteBuf frame && index >= 0) {
+            counters.recordWire(index, frame.readableBytes());
+        }
+        ctx.write(msg, promise);
+    }
+
+    /**
+     * @return the wire size of the frame the incoming packet being handled was decoded from, or -1 outside of a read
+     */
+    public int inboundSize() {
+        return inboundSize;
+    }
+
+    /**
+     * Expect the frame of the outgoing packet that's about to be compressed and framed.
+     * @param index the packet type slot
+     */
+    public void expectOutbound(int index) {
+        outboundIndex = index;
+    }
+
+    /**
+     * @param value a non negative int
+     * @return the bytes the VarInt of the value takes
+     */
+    private static int varIntBytes(int value) {
+        return (31 - Integer.numberOfLeadingZeros(value | 1)) / 7 + 1;
+    }
+}
@@ -0,0 +1,143 @@
+package me.tech.packetlogger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Writes rows across several footer stripes and reads them back through the range index,
+ * from the writing segment and from the file reopened with and without a footer.
+ */
+public class ColumnarSegmentTest {
+    private static final long BASE = 1_700_000_000_000L;
+    /** Two full stripes and a partial one. */
+    private static final int ROWS = 3_000;
+    private static final int STRIPE_ROWS = 1024;
+    private static final List<ColumnarSegment.TypeEntry> TYPES = List.of(
+        new ColumnarSegment.TypeEntry(1, "CHAT_MESSAGE", false),
+        new ColumnarSegment.TypeEntry(2, "CHUNK_DATA", true)
+    );
+
+    @TempDir
+    Path folder;
+
+    @Test
+    public void findsRowsOfTheWritingSegment() throws Exception {
+        try(final var segment = write(folder.resolve("segment.bin"))) {
+            assertRanges(segment);
+        }
+    }
+
+    @Test
+    public void findsRowsOfASealedSegment() throws Exception {
+        final var file = folder.resolve("segment.bin");
+        try(final var segment = write(file)) {
+            segment.seal();
+        }
+
+        try(final var segment = ColumnarSegment.open(file)) {
+            assertEquals(TYPES, segment.types());
+            assertRanges(segment);
+            assertRows(segment);
+        }
+    }
+
+    @Test
+    public void rebuildsTheIndexOfAnUnsealedSegment() throws Exception {
+        final var file = folder.resolve("segment.bin");
+        try(final var segment = write(file)) {
+            // never committed, a reader mustn't see them.
+            segment.append(BASE + timestampOf(ROWS), 1, 1, 1, 1, 0, 1, 1, 1, 1);
+        }
+
+        try(final var segment = ColumnarSegment.open(file)) {
+            assertEquals(ROWS, segment.rows());
+            assertRanges(segment);
+            assertRows(segment);
+        }
+    }
+
+    @Test
+    public void hidesUncommittedRows() throws Exception {
+        try(final var segment = write(folder.resolve("segment.bin"))) {
+            // these start a fourth stripe, which only exists once they're committed.
+            for(int row = ROWS; row < ROWS + 200; row++) {
+                segment.append(BASE + timestampOf(row), 1, 1, 1, 1, 0, 1, 1, 1, 1);
+            }
+            assertEquals(ROWS, segment.rows());
+            assertArrayEquals(new int[] { 0, 0 }, segment.rowRange(BASE + timestampOf(3_150), BASE + timestampOf(3_150)));
+
+            segment.commit();
+            assertEquals(ROWS + 200, segment.rows());
+            assertArrayEquals(new int[] { 3 * STRIPE_ROWS, ROWS + 200 }, segment.rowRange(BASE + timestampOf(3_150), BASE + timestampOf(3_150)));
+        }
+    }
+
+    @Test
+    public void fitsOnlyWithinCapacityAndTheTimestampRange() throws Exception {
+        try(final var segment = ColumnarSegment.create(folder.resolve("segment.bin"), 2, BASE, TYPES)) {
+            assertTrue(segment.fits(2, BASE));
+            assertFalse(segment.fits(3, BASE));
+            assertFalse(segment.fits(1, BASE - 1));
+            assertFalse(segment.fits(1, BASE + Integer.MAX_VALUE + 1L));
+        }
+    }
+
+    /**
+     * Create a segment with room for a fourth stripe and commit {@link #ROWS} rows, one every 10 ms.
+     */
+    private static ColumnarSegment write(Path file) throws Exception {
+        final var segment = ColumnarSegment.create(file, 4 * STRIPE_ROWS, BASE, TYPES);
+        for(int row = 0; row < ROWS; row++) {
+            segment.append(BASE + timestampOf(row), TYPES.get(row % 2).id(), row, row * 10L, row * 8L, row % 3,
+                row + 4, row + 1, row + 2, row + 3);
+        }
+        segment.commit();
+        return segment;
+    }
+
+    private static long timestampOf(int row) {
+        return row * 10L;
+    }
+
+    private static void assertRanges(ColumnarSegment segment) {
+        assertEquals(ROWS, segment.rows());
+        // inside one stripe, across a stripe boundary, the partial last stripe, everything, and outside.
+        assertArrayEquals(new int[] { 0, STRIPE_ROWS }, range(segment, 0, 5));
+        assertArrayEquals(new int[] { STRIPE_ROWS, 2 * STRIPE_ROWS }, range(segment, 1_500, 1_500));
+        assertArrayEquals(new int[] { 0, 2 * STRIPE_ROWS }, range(segment, 1_000, 1_100));
+        assertArrayEquals(new int[] { 2 * STRIPE_ROWS, ROWS }, range(segment, 2_500, 2_999));
+        assertArrayEquals(new int[] { 0, ROWS }, range(segment, 0, ROWS));
+        assertArrayEquals(new int[] { 0, 0 }, segment.rowRange(BASE - 100, BASE - 1));
+        assertArrayEquals(new int[] { 0, 0 }, range(segment, ROWS, ROWS + 10));
+    }
+
+    /**
+     * @return the row range of the rows written between two row numbers
+     */
+    private static int[] range(ColumnarSegment segment, int fromRow, int toRow) {
+        return segment.rowRange(BASE + timestampOf(fromRow), BASE + timestampOf(toRow));
+    }
+
+    private static void assertRows(ColumnarSegment segment) {
+        for(final var row : new int[] { 0, 1, STRIPE_ROWS - 1, STRIPE_ROWS, ROWS - 1 }) {
+            assertEquals(BASE + timestampOf(row), segment.timestamp(row));
+            assertEquals(TYPES.get(row % 2).id(), segment.typeId(row));
+            assertEquals(row, segment.count(row));
+            assertEquals(row * 10L, segment.bytes(row));
+            assertEquals(row * 8L, segment.wireBytes(row));
+            assertEquals(row % 3, segment.violations(row));
+            assertEquals(row + 4, segment.sizeMax(row));
+            assertEquals(row + 1, segment.sizePercentile(row, 50));
+            assertEquals(row + 2, segment.sizePercentile(row, 90));
+            assertEquals(row + 3, segment.sizePercentile(row, 99));
+        }
+    }
+}
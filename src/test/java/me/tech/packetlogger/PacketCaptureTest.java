@@ -0,0 +1,187 @@
+package me.tech.packetlogger;
+
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+/**
+ * Samples every packet into a small ring and reads back the dump it writes.
+ */
+public class PacketCaptureTest {
+    /** "PKTCAP01" */
+    private static final long DUMP_MAGIC = 0x504B544341503031L;
+    /** Fits three records of {@link #PAYLOAD} bytes, the fourth wraps around and leaves a padded end. */
+    private static final int CAPACITY = 256;
+    /** 24 header bytes plus the payload is a 72 byte record. */
+    private static final int PAYLOAD = 48;
+
+    private final PacketTypeIndex packetTypes = new PacketTypeIndex();
+
+    @TempDir
+    Path folder;
+
+    @Test
+    public void keepsRecordsInOrder() throws Exception {
+        final var capture = capture(CAPACITY, PAYLOAD);
+        for(int i = 0; i < 3; i++) {
+            sample(capture, i, PAYLOAD);
+        }
+
+        assertEquals(List.of(0, 1, 2), firstBytes(dump(capture, 0)));
+    }
+
+    @Test
+    public void wrapsAroundPastThePaddedEnd() throws Exception {
+        final var capture = capture(CAPACITY, PAYLOAD);
+        // 3 records end at 216, the 40 bytes left are padded and every later record evicts the oldest one.
+        for(int i = 0; i < 10; i++) {
+            sample(capture, i, PAYLOAD);
+            final var kept = firstBytes(dump(capture, 0));
+            assertEquals(Math.min(i + 1, 3), kept.size());
+            assertEquals(i, (int) kept.get(kept.size() - 1));
+        }
+
+        assertEquals(List.of(7, 8, 9), firstBytes(dump(capture, 0)));
+    }
+
+    @Test
+    public void evictsEverythingForARecordOverHalfTheRing() throws Exception {
+        // the whole ring minus one header, the only record left once it wraps.
+        final var capture = capture(CAPACITY, CAPACITY);
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            sample(capture, 1, 0);
+            sample(capture, 2, 224);
+            assertEquals(List.of(224), sizes(dump(capture, 0)));
+
+            // the next records wrap past an end too short to hold a header.
+            sample(capture, 3, 0);
+            assertEquals(List.of(0), sizes(dump(capture, 0)));
+            sample(capture, 4, 224);
+            assertEquals(List.of(224), sizes(dump(capture, 0)));
+            sample(capture, 5, PAYLOAD);
+            assertEquals(List.of(PAYLOAD), sizes(dump(capture, 0)));
+        });
+    }
+
+    @Test
+    public void truncatesToMaxBytes() throws Exception {
+        final var capture = capture(CAPACITY, 16);
+        sample(capture, 5, 100);
+
+        final var records = dump(capture, 0);
+        assertEquals(1, records.size());
+        assertEquals(100, records.get(0).size());
+        assertEquals(16, records.get(0).bytes().length);
+        assertArrayEquals(payload(5, 16), records.get(0).bytes());
+    }
+
+    @Test
+    public void skipsRecordsBeforeSince() throws Exception {
+        final var capture = capture(CAPACITY, PAYLOAD);
+        sample(capture, 1, PAYLOAD);
+
+        assertEquals(0, dump(capture, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void neverSamplesAtRateZero() throws Exception {
+        final var capture = new PacketCapture(packetTypes, new int[packetTypes.size()], CAPACITY, PAYLOAD);
+        sample(capture, 1, PAYLOAD);
+
+        assertEquals(0, dump(capture, 0).size());
+    }
+
+    @Test
+    public void rejectsBuffersWithoutRoomForARecord() {
+        assertThrows(IllegalArgumentException.class, () -> capture(31, PAYLOAD));
+        capture(32, PAYLOAD);
+    }
+
+    /**
+     * A capture sampling every packet of every slot.
+     */
+    private PacketCapture capture(int capacity, int maxBytes) {
+        final var sampleRates = new int[packetTypes.size()];
+        Arrays.fill(sampleRates, 1);
+        return new PacketCapture(packetTypes, sampleRates, capacity, maxBytes);
+    }
+
+    /**
+     * Sample a packet of slot 0 whose bytes all start from a marker.
+     */
+    private static void sample(PacketCapture capture, int marker, int size) {
+        final var buffer = Unpooled.wrappedBuffer(payload(marker, size));
+        try {
+            capture.sample(0, buffer, size);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private static byte[] payload(int marker, int size) {
+        final var payload = new byte[size];
+        for(int i = 0; i < size; i++) {
+            payload[i] = (byte) (marker + i);
+        }
+        return payload;
+    }
+
+    private static List<Integer> sizes(List<Record> records) {
+        return records.stream().map(Record::size).toList();
+    }
+
+    private static List<Integer> firstBytes(List<Record> records) {
+        return records.stream().map((record) -> (int) record.bytes()[0]).toList();
+    }
+
+    /**
+     * Dump the capture and parse the file back.
+     */
+    private List<Record> dump(PacketCapture capture, long since) throws Exception {
+        final var file = folder.resolve("capture.bin");
+        final var written = capture.dump(file, since);
+
+        final var records = new ArrayList<Record>();
+        try(final var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            assertEquals(DUMP_MAGIC, in.readLong());
+            while(true) {
+                final long capturedAt;
+                try {
+                    capturedAt = in.readLong();
+                } catch(EOFException ex) {
+                    break;
+                }
+                final var name = in.readUTF();
+                final var outgoing = in.readBoolean();
+                final var size = in.readInt();
+                final var bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                records.add(new Record(capturedAt, name, outgoing, size, bytes));
+            }
+        }
+
+        assertEquals(written, records.size());
+        for(final var record : records) {
+            assertEquals(packetTypes.name(0), record.name());
+            assertEquals(packetTypes.outgoing(0), record.outgoing());
+        }
+        return records;
+    }
+
+    private record Record(long capturedAt, String name, boolean outgoing, int size, byte[] bytes) {}
+}
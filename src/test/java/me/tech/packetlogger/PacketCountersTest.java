@@ -0,0 +1,75 @@
+package me.tech.packetlogger;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Counts a few packets and checks the window drained from them, and that draining resets every cell.
+ */
+public class PacketCountersTest {
+    private static final int SLOTS = 4;
+
+    @Test
+    public void drainsAWindow() {
+        final var counters = new PacketCounters(SLOTS);
+        counters.record(1, 16);
+        counters.record(1, 32);
+        counters.record(1, 1_000);
+        counters.recordWire(1, 512);
+        counters.recordViolation(2);
+        assertEquals(2, counters.dirtyCells());
+
+        final var snapshot = counters.snapshot(1_000, ConnectionDimensions.Snapshot.EMPTY, List.of());
+        assertEquals(1_000, snapshot.collectedAt());
+        assertEquals(3, snapshot.amounts()[1]);
+        assertEquals(1_048, snapshot.sizes()[1]);
+        assertEquals(512, snapshot.wireSizes()[1]);
+        assertEquals(1_000, snapshot.maxSizes()[1]);
+        assertEquals(1, snapshot.violations()[2]);
+        // one row for the packets and one for the violation only slot.
+        assertEquals(2, snapshot.rows());
+
+        // 32 is the second of three and falls into the 32 to 39 bucket, the largest packet caps the tail.
+        assertEquals(39, snapshot.sizePercentile(1, 0.5));
+        assertEquals(1_000, snapshot.sizePercentile(1, 0.99));
+        assertNull(snapshot.sizeHistograms()[0]);
+    }
+
+    @Test
+    public void resetsOnSnapshot() {
+        final var counters = new PacketCounters(SLOTS);
+        counters.record(1, 64);
+        counters.recordViolation(2);
+        counters.snapshot(1_000, ConnectionDimensions.Snapshot.EMPTY, List.of());
+        assertEquals(0, counters.dirtyCells());
+
+        final var snapshot = counters.snapshot(2_000, ConnectionDimensions.Snapshot.EMPTY, List.of());
+        assertTrue(snapshot.isEmpty());
+        for(int i = 0; i < SLOTS; i++) {
+            assertEquals(0, snapshot.amounts()[i]);
+            assertEquals(0, snapshot.sizes()[i]);
+            assertEquals(0, snapshot.maxSizes()[i]);
+            assertEquals(0, snapshot.violations()[i]);
+            assertNull(snapshot.sizeHistograms()[i]);
+        }
+
+        counters.record(1, 8);
+        assertEquals(1, counters.dirtyCells());
+        assertEquals(1, counters.snapshot(3_000, ConnectionDimensions.Snapshot.EMPTY, List.of()).amounts()[1]);
+    }
+
+    @Test
+    public void bucketsStayWithinAQuarterOfTheSize() {
+        for(int size = 0; size < 1 << 20; size++) {
+            final var upperBound = SizeHistogram.upperBound(SizeHistogram.bucket(size));
+            assertTrue(upperBound >= size && upperBound - size <= size / 4, "size " + size);
+        }
+        assertEquals(SizeHistogram.BUCKETS - 1, SizeHistogram.bucket(Integer.MAX_VALUE));
+        assertEquals(Integer.MAX_VALUE, SizeHistogram.upperBound(SizeHistogram.BUCKETS - 1));
+    }
+}
@@ -0,0 +1,85 @@
+package me.tech.packetlogger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Sends a window to a socket bound on loopback and checks the lines that arrive.
+ */
+public class UdpLinePacketSinkTest {
+    private final PacketTypeIndex packetTypes = new PacketTypeIndex();
+
+    private DatagramSocket socket;
+    private int slot;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        socket.setSoTimeout(5_000);
+
+        for(slot = 0; slot < packetTypes.size(); slot++) {
+            if(!packetTypes.outgoing(slot)) {
+                break;
+            }
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        socket.close();
+    }
+
+    @Test
+    public void statsdCounters() throws Exception {
+        final var metric = "packetlogger.in." + packetTypes.name(slot).toLowerCase(Locale.ROOT);
+        assertEquals(metric + ".packets:2|c\n" + metric + ".bytes:48|c\n", send(UdpLinePacketSink.Format.STATSD, 1_000));
+    }
+
+    @Test
+    public void influxPoints() throws Exception {
+        final var line = "packets,packet=%s,direction=in packets=2i,bytes=48i %d\n"
+            .formatted(packetTypes.name(slot), TimeUnit.MILLISECONDS.toNanos(1_000));
+        assertEquals(line, send(UdpLinePacketSink.Format.INFLUX, 1_000));
+    }
+
+    /**
+     * Write a window of two incoming packets and receive the datagram it's sent as.
+     */
+    private String send(UdpLinePacketSink.Format format, long collectedAt) throws Exception {
+        final var prefix = format == UdpLinePacketSink.Format.STATSD ? "packetlogger" : "packets";
+        final var sink = new UdpLinePacketSink(
+            format,
+            socket.getLocalAddress().getHostAddress(),
+            socket.getLocalPort(),
+            packetTypes,
+            prefix,
+            1432
+        );
+
+        final var counters = new PacketCounters(packetTypes.size());
+        counters.record(slot, 16);
+        counters.record(slot, 32);
+
+        sink.open();
+        try {
+            sink.write(counters.snapshot(collectedAt, ConnectionDimensions.Snapshot.EMPTY, List.of()));
+        } finally {
+            sink.close();
+        }
+
+        final var packet = new DatagramPacket(new byte[1432], 1432);
+        socket.receive(packet);
+        return new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+    }
+}